@@ -0,0 +1,14 @@
+package com.usemalloc;
+
+// Where the Resolver found a variable, which says how to read and assign it.
+
+enum Access {
+    // A global, looked up by name the first time and by slot after that.
+    GLOBAL,
+    // A slot of the current frame.
+    LOCAL,
+    // A slot of the current frame that holds a Cell, because a closure captures the variable.
+    CELL,
+    // A Cell the running function captured, by its index among the function's upvalues.
+    UPVALUE
+}
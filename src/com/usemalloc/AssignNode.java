@@ -0,0 +1,147 @@
+package com.usemalloc;
+
+// An assignment compiled by ClosureCompiler. While the assigned values keep
+// being numbers it stores them unboxed, whether the assignment is a statement
+// or the operand of arithmetic. The first value that is not a number turns
+// that off for good. A captured variable is always stored boxed, in its Cell.
+
+abstract class AssignNode implements ExprNode {
+
+    final ExprNode value;
+    boolean numeric = true;
+
+    AssignNode(ExprNode value) {
+        this.value = value;
+    }
+
+    static final class Local extends AssignNode {
+        private final int slot;
+
+        Local(ExprNode value, int slot) {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.set(slot, result);
+            return result;
+        }
+
+        @Override
+        public void executeVoid(Environment environment) {
+            if (!numeric) {
+                execute(environment);
+                return;
+            }
+
+            try {
+                environment.setDouble(slot, value.executeDouble(environment));
+            } catch (UnexpectedResultException e) {
+                numeric = false;
+                environment.set(slot, e.result);
+            }
+        }
+
+        @Override
+        public double executeDouble(Environment environment) throws UnexpectedResultException {
+            if (!numeric) return ExprNode.expectDouble(execute(environment));
+
+            try {
+                double result = value.executeDouble(environment);
+                environment.setDouble(slot, result);
+                return result;
+            } catch (UnexpectedResultException e) {
+                numeric = false;
+                environment.set(slot, e.result);
+                throw e;
+            }
+        }
+    }
+
+    // A variable of the current function that a closure captured.
+    static final class Captured extends AssignNode {
+        private final int slot;
+
+        Captured(ExprNode value, int slot) {
+            super(value);
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.cell(slot).value = result;
+            return result;
+        }
+    }
+
+    // A variable of an enclosing function.
+    static final class Upvalue extends AssignNode {
+        private final int index;
+
+        Upvalue(ExprNode value, int index) {
+            super(value);
+            this.index = index;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.upvalues[index].value = result;
+            return result;
+        }
+    }
+
+    static final class Global extends AssignNode {
+        private final Globals globals;
+        private final int slot;
+        private final Token name;
+
+        Global(ExprNode value, Globals globals, int slot, Token name) {
+            super(value);
+            this.globals = globals;
+            this.slot = slot;
+            this.name = name;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            globals.assign(slot, name, result);
+            return result;
+        }
+
+        @Override
+        public void executeVoid(Environment environment) {
+            if (!numeric) {
+                execute(environment);
+                return;
+            }
+
+            try {
+                globals.assignDouble(slot, name, value.executeDouble(environment));
+            } catch (UnexpectedResultException e) {
+                numeric = false;
+                globals.assign(slot, name, e.result);
+            }
+        }
+
+        @Override
+        public double executeDouble(Environment environment) throws UnexpectedResultException {
+            if (!numeric) return ExprNode.expectDouble(execute(environment));
+
+            try {
+                double result = value.executeDouble(environment);
+                globals.assignDouble(slot, name, result);
+                return result;
+            } catch (UnexpectedResultException e) {
+                numeric = false;
+                globals.assign(slot, name, e.result);
+                throw e;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,309 @@
+package com.usemalloc;
+
+// A binary operator compiled by ClosureCompiler that specializes itself on the
+// operand types it actually sees. A node starts uninitialized; its first
+// evaluation rewrites it to the double-only or string-only version when both
+// operands have that type, or to the generic version otherwise. A specialized
+// node whose guard fails deoptimizes to the generic version for good, so a
+// node rewrites itself at most twice and a loop like `i = i + 1` settles on
+// a single instanceof guard and a primitive operation.
+
+abstract class BinaryNode implements ExprNode {
+
+    enum State {
+        UNINITIALIZED,
+        DOUBLE,
+        STRING,
+        GENERIC
+    }
+
+    final ExprNode left;
+    final ExprNode right;
+    final Token operator;
+    State state = State.UNINITIALIZED;
+
+    BinaryNode(ExprNode left, Token operator, ExprNode right) {
+        this.left = left;
+        this.operator = operator;
+        this.right = right;
+    }
+
+    static BinaryNode create(ExprNode left, Token operator, ExprNode right) {
+        switch (operator.type) {
+            case PLUS: return new Add(left, operator, right);
+            case MINUS: return new Subtract(left, operator, right);
+            case STAR: return new Multiply(left, operator, right);
+            case SLASH: return new Divide(left, operator, right);
+            case GREATER: return new Greater(left, operator, right);
+            case GREATER_EQUAL: return new GreaterEqual(left, operator, right);
+            case LESS: return new Less(left, operator, right);
+            case LESS_EQUAL: return new LessEqual(left, operator, right);
+            case EQUAL_EQUAL: return new Equal(left, operator, right);
+            case BANG_EQUAL: return new NotEqual(left, operator, right);
+        }
+        throw new IllegalStateException("Unexpected binary operator " + operator.type);
+    }
+
+    // Once specialized to doubles, the operands are asked for unboxed numbers,
+    // so nested arithmetic allocates nothing until the result escapes.
+    @Override
+    public final Object execute(Environment environment) {
+        if (state == State.DOUBLE) {
+            double a;
+            try {
+                a = left.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return specialize(e.result, right.execute(environment));
+            }
+            double b;
+            try {
+                b = right.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return specialize(a, e.result);
+            }
+            return doDouble(a, b);
+        }
+
+        Object a = left.execute(environment);
+        Object b = right.execute(environment);
+        if (state == State.STRING) {
+            if (a instanceof CharSequence && b instanceof CharSequence) {
+                return doString((CharSequence)a, (CharSequence)b);
+            }
+        } else if (state == State.GENERIC) {
+            return doGeneric(a, b);
+        }
+        return specialize(a, b);
+    }
+
+    // Picks the specialization for operands that did not pass the current guard.
+    Object specialize(Object a, Object b) {
+        if (state == State.UNINITIALIZED) {
+            if (a instanceof Double && b instanceof Double) {
+                state = State.DOUBLE;
+                return doDouble((double)a, (double)b);
+            }
+            if (hasStringCase() && a instanceof CharSequence && b instanceof CharSequence) {
+                state = State.STRING;
+                return doString((CharSequence)a, (CharSequence)b);
+            }
+        }
+        state = State.GENERIC;
+        return doGeneric(a, b);
+    }
+
+    abstract Object doDouble(double a, double b);
+
+    boolean hasStringCase() {
+        return false;
+    }
+
+    Object doString(CharSequence a, CharSequence b) {
+        throw new IllegalStateException();
+    }
+
+    // Handles any operands, with the same checks and errors as the Interpreter.
+    Object doGeneric(Object a, Object b) {
+        Interpreter.checkNumberOperands(operator, a, b);
+        return doDouble((double)a, (double)b);
+    }
+
+    // The operators whose result is a number, which can hand it to their parent unboxed.
+    abstract static class Arithmetic extends BinaryNode {
+        Arithmetic(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        abstract double apply(double a, double b);
+
+        @Override
+        final Object doDouble(double a, double b) {
+            return apply(a, b);
+        }
+
+        @Override
+        public final double executeDouble(Environment environment) throws UnexpectedResultException {
+            if (state != State.DOUBLE) {
+                return ExprNode.expectDouble(execute(environment));
+            }
+
+            double a;
+            try {
+                a = left.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return ExprNode.expectDouble(specialize(e.result, right.execute(environment)));
+            }
+            double b;
+            try {
+                b = right.executeDouble(environment);
+            } catch (UnexpectedResultException e) {
+                return ExprNode.expectDouble(specialize(a, e.result));
+            }
+            return apply(a, b);
+        }
+    }
+
+    static final class Add extends Arithmetic {
+        Add(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a + b;
+        }
+
+        @Override
+        boolean hasStringCase() {
+            return true;
+        }
+
+        @Override
+        Object doString(CharSequence a, CharSequence b) {
+            return Rope.concat(a, b);
+        }
+
+        @Override
+        Object doGeneric(Object a, Object b) {
+            if (a instanceof Double && b instanceof Double) {
+                return (double)a + (double)b;
+            }
+            if (a instanceof CharSequence && b instanceof CharSequence) {
+                return Rope.concat((CharSequence)a, (CharSequence)b);
+            }
+            throw new RuntimeError(operator, "Operands must ve two numbers or two strings.");
+        }
+    }
+
+    static final class Subtract extends Arithmetic {
+        Subtract(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a - b;
+        }
+    }
+
+    static final class Multiply extends Arithmetic {
+        Multiply(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a * b;
+        }
+    }
+
+    static final class Divide extends Arithmetic {
+        Divide(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        double apply(double a, double b) {
+            return a / b;
+        }
+    }
+
+    static final class Greater extends BinaryNode {
+        Greater(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object doDouble(double a, double b) {
+            return a > b;
+        }
+    }
+
+    static final class GreaterEqual extends BinaryNode {
+        GreaterEqual(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object doDouble(double a, double b) {
+            return a >= b;
+        }
+    }
+
+    static final class Less extends BinaryNode {
+        Less(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object doDouble(double a, double b) {
+            return a < b;
+        }
+    }
+
+    static final class LessEqual extends BinaryNode {
+        LessEqual(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object doDouble(double a, double b) {
+            return a <= b;
+        }
+    }
+
+    // Equality accepts any operands. Double.compare agrees with Double.equals,
+    // which is what Interpreter.isEqual uses, on NaN and signed zeroes.
+    static final class Equal extends BinaryNode {
+        Equal(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object doDouble(double a, double b) {
+            return Double.compare(a, b) == 0;
+        }
+
+        @Override
+        boolean hasStringCase() {
+            return true;
+        }
+
+        @Override
+        Object doString(CharSequence a, CharSequence b) {
+            return Rope.equal(a, b);
+        }
+
+        @Override
+        Object doGeneric(Object a, Object b) {
+            return Interpreter.isEqual(a, b);
+        }
+    }
+
+    static final class NotEqual extends BinaryNode {
+        NotEqual(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object doDouble(double a, double b) {
+            return Double.compare(a, b) != 0;
+        }
+
+        @Override
+        boolean hasStringCase() {
+            return true;
+        }
+
+        @Override
+        Object doString(CharSequence a, CharSequence b) {
+            return !Rope.equal(a, b);
+        }
+
+        @Override
+        Object doGeneric(Object a, Object b) {
+            return !Interpreter.isEqual(a, b);
+        }
+    }
+
+}
@@ -0,0 +1,14 @@
+package com.usemalloc;
+
+// A local variable that a closure captures. The frame that declares it and
+// every function that captures it share the one cell, so an assignment made
+// through any of them is seen by all of them, and a closure keeps alive only
+// the variables it uses rather than the whole frame they were declared in.
+
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
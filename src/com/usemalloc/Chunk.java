@@ -0,0 +1,48 @@
+package com.usemalloc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// The compiled code of one function: the instruction bytes, the source line of
+// each byte for error reporting, and the constant pool the instructions index into.
+
+class Chunk {
+
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+
+    Object[] constants = new Object[8];
+    private int constantCount = 0;
+
+    // Equal constants share one entry in the pool.
+    private final Map<Object,Integer> constantIndexes = new HashMap<>();
+
+    void write(int value, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) value;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        Integer index = constantIndexes.get(value);
+        if (index != null) return index;
+
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        constantIndexes.put(value, constantCount);
+        return constantCount++;
+    }
+
+    int constantCount() {
+        return constantCount;
+    }
+
+}
@@ -0,0 +1,250 @@
+package com.usemalloc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes JVM class files, only as much of the format as the Jit needs: a
+// constant pool, public methods and their code. The files are version 49, so
+// the verifier infers the stack and local types itself and the methods need
+// no StackMapTable frames.
+
+final class ClassFile {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+
+    private final Buffer pool = new Buffer();
+    private final Map<String,Integer> constants = new HashMap<>();
+    private int constantCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<Buffer> methods = new ArrayList<>();
+
+    ClassFile(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = classRef(interfaceNames[i]);
+        }
+    }
+
+    // Constant pool entries. Each one is added once and then shared.
+
+    int utf8(String value) {
+        Integer index = constants.get("U" + value);
+        if (index != null) return index;
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        pool.u1(1);
+        pool.u2(bytes.length);
+        pool.bytes(bytes, bytes.length);
+        return add("U" + value, 1);
+    }
+
+    int classRef(String name) {
+        Integer index = constants.get("C" + name);
+        if (index != null) return index;
+
+        int nameIndex = utf8(name);
+        pool.u1(7);
+        pool.u2(nameIndex);
+        return add("C" + name, 1);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        String key = "M" + owner + "." + name + descriptor;
+        Integer index = constants.get(key);
+        if (index != null) return index;
+
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        pool.u1(10);
+        pool.u2(ownerIndex);
+        pool.u2(nameAndType);
+        return add(key, 1);
+    }
+
+    int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        String key = "D" + bits;
+        Integer index = constants.get(key);
+        if (index != null) return index;
+
+        pool.u1(6);
+        pool.u4((int)(bits >>> 32));
+        pool.u4((int)bits);
+        // A double takes up two entries in the pool.
+        return add(key, 2);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + ":" + descriptor;
+        Integer index = constants.get(key);
+        if (index != null) return index;
+
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        pool.u1(12);
+        pool.u2(nameIndex);
+        pool.u2(descriptorIndex);
+        return add(key, 1);
+    }
+
+    private int add(String key, int size) {
+        int index = constantCount;
+        constants.put(key, index);
+        constantCount += size;
+        return index;
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        Buffer method = new Buffer();
+        method.u2(access);
+        method.u2(utf8(name));
+        method.u2(utf8(descriptor));
+        method.u2(1);
+
+        method.u2(utf8("Code"));
+        method.u4(12 + code.length());
+        method.u2(code.maxStack);
+        method.u2(code.maxLocals);
+        method.u4(code.length());
+        method.bytes(code.bytes.data, code.bytes.length);
+        method.u2(0);   // No exception handlers.
+        method.u2(0);   // No attributes.
+        methods.add(method);
+    }
+
+    byte[] toByteArray() {
+        Buffer out = new Buffer();
+        out.u4(0xCAFEBABE);
+        out.u2(0);
+        out.u2(VERSION);
+        out.u2(constantCount);
+        out.bytes(pool.data, pool.length);
+        out.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.u2(thisClass);
+        out.u2(superClass);
+        out.u2(interfaces.length);
+        for (int index : interfaces) {
+            out.u2(index);
+        }
+        out.u2(0);      // No fields.
+        out.u2(methods.size());
+        for (Buffer method : methods) {
+            out.bytes(method.data, method.length);
+        }
+        out.u2(0);      // No attributes.
+
+        byte[] bytes = new byte[out.length];
+        System.arraycopy(out.data, 0, bytes, 0, out.length);
+        return bytes;
+    }
+
+    // The body of one method. Every instruction is written together with how
+    // it changes the operand stack, which is how maxStack is worked out.
+    static final class Code {
+        private final Buffer bytes = new Buffer();
+        private int stack = 0;
+        int maxStack = 0;
+        int maxLocals = 0;
+
+        int length() {
+            return bytes.length;
+        }
+
+        void op(int opcode, int stackEffect) {
+            bytes.u1(opcode);
+            adjust(stackEffect);
+        }
+
+        void op(int opcode, int operand, int stackEffect) {
+            bytes.u1(opcode);
+            bytes.u1(operand);
+            adjust(stackEffect);
+        }
+
+        void opWide(int opcode, int operand, int stackEffect) {
+            bytes.u1(opcode);
+            bytes.u2(operand);
+            adjust(stackEffect);
+        }
+
+        // Writes a branch with a placeholder offset and returns where it is,
+        // for patchJump to fill in once the target is known.
+        int jump(int opcode, int stackEffect) {
+            int at = bytes.length;
+            opWide(opcode, 0xffff, stackEffect);
+            return at;
+        }
+
+        void patchJump(int at) {
+            int offset = bytes.length - at;
+            if (offset > Short.MAX_VALUE) {
+                throw new IllegalStateException("Method too large.");
+            }
+            bytes.data[at + 1] = (byte)(offset >> 8);
+            bytes.data[at + 2] = (byte)offset;
+        }
+
+        void jumpBack(int opcode, int target, int stackEffect) {
+            int offset = target - bytes.length;
+            if (offset < Short.MIN_VALUE) {
+                throw new IllegalStateException("Method too large.");
+            }
+            opWide(opcode, offset & 0xffff, stackEffect);
+        }
+
+        private void adjust(int stackEffect) {
+            stack += stackEffect;
+            if (stack > maxStack) maxStack = stack;
+        }
+    }
+
+    // A growable byte array written big-endian, as the class file format wants.
+    private static final class Buffer {
+        byte[] data = new byte[64];
+        int length = 0;
+
+        void u1(int value) {
+            ensure(1);
+            data[length++] = (byte)value;
+        }
+
+        void u2(int value) {
+            ensure(2);
+            data[length++] = (byte)(value >> 8);
+            data[length++] = (byte)value;
+        }
+
+        void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        void bytes(byte[] values, int count) {
+            ensure(count);
+            System.arraycopy(values, 0, data, length, count);
+            length += count;
+        }
+
+        private void ensure(int size) {
+            if (length + size > data.length) {
+                byte[] grown = new byte[Math.max(data.length * 2, length + size)];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+        }
+    }
+
+}
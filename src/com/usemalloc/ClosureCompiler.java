@@ -0,0 +1,603 @@
+package com.usemalloc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// An alternative to walking the tree: every resolved statement and expression
+// is visited exactly once and turned into a Java closure. The operator of a
+// binary expression, where a variable is kept and the argument count
+// of a call are looked at here, at compile time, so each closure does one
+// fixed job and its call sites stay monomorphic for the JIT.
+//
+// The runtime model is the Interpreter's: the same Environments, Globals,
+// classes and instances. Only functions differ, see CompiledFunction.
+
+class ClosureCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+
+    private final Interpreter interpreter;
+    private final Globals globals;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    void interpret(List<Stmt> statements) {
+        StmtNode[] program = compile(statements);
+        try {
+            for (StmtNode statement : program) {
+                statement.execute(null);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    private StmtNode[] compile(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = statements.get(i).accept(this);
+        }
+        return nodes;
+    }
+
+    private ExprNode compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private StmtNode compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // Statements.
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        final StmtNode[] statements = compile(stmt.statements);
+        if (stmt.size < 0) {
+            return environment -> {
+                for (StmtNode statement : statements) {
+                    Object result = statement.execute(environment);
+                    if (result != StmtNode.NORMAL) return result;
+                }
+                return StmtNode.NORMAL;
+            };
+        }
+
+        final int size = stmt.size;
+        return environment -> {
+            Environment inner = new Environment(Environment.NO_UPVALUES, size);
+            for (StmtNode statement : statements) {
+                Object result = statement.execute(inner);
+                if (result != StmtNode.NORMAL) return result;
+            }
+            return StmtNode.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt) {
+        final Token name = stmt.name;
+        final ExprNode superclass = stmt.superclass == null ? null : compile(stmt.superclass);
+
+        final Stmt.Function[] declarations = stmt.methods.toArray(new Stmt.Function[0]);
+        final StmtNode[][] bodies = new StmtNode[declarations.length][];
+        for (int i = 0; i < declarations.length; i++) {
+            bodies[i] = compile(declarations[i].body);
+        }
+
+        final int slot = stmt.slot;
+        final int globalSlot = slot < 0 ? globals.slot(name.lexeme) : -1;
+        final boolean captured = stmt.captured;
+        final int size = stmt.size;
+        final int superSlot = stmt.superSlot;
+        return environment -> {
+            // A captured class gets its Cell first, so that its methods can capture it.
+            Cell cell = null;
+            if (captured) {
+                cell = new Cell(null);
+                environment.define(slot,cell);
+            }
+
+            Object superClass = null;
+            Environment methodEnvironment = environment;
+            if (superclass != null) {
+                superClass = superclass.execute(environment);
+                if (!(superClass instanceof LoxClass)) {
+                    throw new RuntimeError(name,"Superclass must be a class.");
+                }
+                // At the top level the scope holding "super" is a frame of its own.
+                if (size >= 0) methodEnvironment = new Environment(Environment.NO_UPVALUES,size);
+                methodEnvironment.define(superSlot,new Cell(superClass));
+            }
+
+            Map<String,LoxFunction> methods = new HashMap<>();
+            for (int i = 0; i < declarations.length; i++) {
+                String methodName = declarations[i].name.lexeme;
+                methods.put(methodName, new CompiledFunction(declarations[i],
+                        LoxFunction.capture(declarations[i], methodEnvironment),
+                        true, methodName.equals("init"), null, bodies[i]));
+            }
+
+            LoxClass klass = new LoxClass(name.lexeme,(LoxClass)superClass,methods);
+            if (globalSlot >= 0) {
+                globals.define(globalSlot,klass);
+            } else if (cell != null) {
+                cell.value = klass;
+            } else {
+                environment.define(slot,klass);
+            }
+            return StmtNode.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        final ExprNode expression = compile(stmt.expression);
+        return environment -> {
+            expression.executeVoid(environment);
+            return StmtNode.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        final Stmt.Function declaration = stmt;
+        final StmtNode[] body = compile(stmt.body);
+
+        if (stmt.slot < 0) {
+            final int slot = globals.slot(stmt.name.lexeme);
+            return environment -> {
+                globals.define(slot, new CompiledFunction(declaration, Environment.NO_UPVALUES,
+                        false, false, null, body));
+                return StmtNode.NORMAL;
+            };
+        }
+        final int slot = stmt.slot;
+        if (stmt.captured) {
+            // The Cell comes first, so that the function can capture itself.
+            return environment -> {
+                Cell cell = new Cell(null);
+                environment.define(slot, cell);
+                cell.value = new CompiledFunction(declaration, LoxFunction.capture(declaration, environment),
+                        false, false, null, body);
+                return StmtNode.NORMAL;
+            };
+        }
+        return environment -> {
+            environment.define(slot, new CompiledFunction(declaration, LoxFunction.capture(declaration, environment),
+                    false, false, null, body));
+            return StmtNode.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        final ExprNode condition = compile(stmt.condition);
+        final StmtNode thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return environment -> {
+                if (Interpreter.isTruthy(condition.execute(environment))) {
+                    return thenBranch.execute(environment);
+                }
+                return StmtNode.NORMAL;
+            };
+        }
+
+        final StmtNode elseBranch = compile(stmt.elseBranch);
+        return environment -> {
+            if (Interpreter.isTruthy(condition.execute(environment))) {
+                return thenBranch.execute(environment);
+            }
+            return elseBranch.execute(environment);
+        };
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        final ExprNode expression = compile(stmt.expression);
+        return environment -> {
+            System.out.println(Interpreter.stringify(expression.execute(environment)));
+            return StmtNode.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return environment -> null;
+        }
+        if (stmt.tailCall) return tailCall((Expr.Call) stmt.value);
+        final ExprNode value = compile(stmt.value);
+        return environment -> value.execute(environment);
+    }
+
+    // A call in tail position. A call to a Lox function is handed back pending,
+    // as in Interpreter.visitReturnStmt, for LoxFunction.invoke to make once
+    // this function has returned; anything else is called at once.
+    private StmtNode tailCall(Expr.Call expr) {
+        final Token paren = expr.paren;
+        final ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        if (expr.callee instanceof Expr.Get) {
+            final ExprNode invoke = invoke((Expr.Get) expr.callee, paren, arguments, true);
+            return invoke::execute;
+        }
+
+        final ExprNode callee = compile(expr.callee);
+        return environment -> {
+            Object function = callee.execute(environment);
+            if (function instanceof LoxFunction) {
+                LoxFunction target = (LoxFunction) function;
+                return prepare(target, target.newFrame(target.receiver), paren, arguments, environment);
+            }
+            return call(function, paren, arguments, environment);
+        };
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        final ExprNode initializer = stmt.initializer == null
+                ? environment -> null
+                : compile(stmt.initializer);
+
+        if (stmt.slot < 0) {
+            final int slot = globals.slot(stmt.name.lexeme);
+            return environment -> {
+                globals.define(slot, initializer.execute(environment));
+                return StmtNode.NORMAL;
+            };
+        }
+        final int slot = stmt.slot;
+        if (stmt.captured) {
+            return environment -> {
+                environment.define(slot, new Cell(initializer.execute(environment)));
+                return StmtNode.NORMAL;
+            };
+        }
+        return environment -> {
+            environment.define(slot, initializer.execute(environment));
+            return StmtNode.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        final ExprNode condition = compile(stmt.condition);
+        final StmtNode body = compile(stmt.body);
+        return environment -> {
+            while (Interpreter.isTruthy(condition.execute(environment))) {
+                Object result = body.execute(environment);
+                if (result != StmtNode.NORMAL) return result;
+            }
+            return StmtNode.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitForStmt(Stmt.For stmt) {
+        final StmtNode initializer = stmt.initializer == null ? null : compile(stmt.initializer);
+        final ExprNode condition = stmt.condition == null ? null : compile(stmt.condition);
+        final ExprNode increment = stmt.increment == null ? null : compile(stmt.increment);
+        final StmtNode body = compile(stmt.body);
+
+        final int size = stmt.size;
+        return environment -> {
+            Environment loop = size < 0 ? environment : new Environment(Environment.NO_UPVALUES, size);
+            if (initializer != null) initializer.execute(loop);
+
+            while (condition == null || Interpreter.isTruthy(condition.execute(loop))) {
+                Object result = body.execute(loop);
+                if (result != StmtNode.NORMAL) return result;
+
+                if (increment != null) increment.executeVoid(loop);
+            }
+            return StmtNode.NORMAL;
+        };
+    }
+
+    // Expressions.
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        ExprNode value = compile(expr.value);
+        switch (expr.access) {
+            case LOCAL: return new AssignNode.Local(value, expr.slot);
+            case CELL: return new AssignNode.Captured(value, expr.slot);
+            case UPVALUE: return new AssignNode.Upvalue(value, expr.slot);
+            default: return new AssignNode.Global(value, globals, globals.slot(expr.name.lexeme), expr.name);
+        }
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        return BinaryNode.create(compile(expr.left), expr.operator, compile(expr.right));
+    }
+
+    // Running out of Java stack is reported at the call that went too deep,
+    // like the VM reports running past its frame limit.
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        final ExprNode call = compileCall(expr);
+        final Token paren = expr.paren;
+        return environment -> {
+            try {
+                return call.execute(environment);
+            } catch (StackOverflowError error) {
+                throw new RuntimeError(paren, "Stack overflow.");
+            }
+        };
+    }
+
+    // Calls are specialised on the argument count: up to four arguments go
+    // through the callee's fixed-arity entry point, with no array or list.
+    private ExprNode compileCall(Expr.Call expr) {
+        final Token paren = expr.paren;
+        final ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        if (expr.callee instanceof Expr.Get) {
+            return invoke((Expr.Get) expr.callee, paren, arguments, false);
+        }
+
+        final ExprNode callee = compile(expr.callee);
+        switch (arguments.length) {
+            case 0:
+                return environment -> {
+                    LoxCallable function = callable(callee.execute(environment), paren);
+                    Interpreter.checkArity(function, 0, paren);
+                    return function.call0(interpreter);
+                };
+            case 1: {
+                final ExprNode first = arguments[0];
+                return environment -> {
+                    LoxCallable function = callable(callee.execute(environment), paren);
+                    Object a = first.execute(environment);
+                    Interpreter.checkArity(function, 1, paren);
+                    return function.call1(interpreter, a);
+                };
+            }
+            case 2: {
+                final ExprNode first = arguments[0];
+                final ExprNode second = arguments[1];
+                return environment -> {
+                    LoxCallable function = callable(callee.execute(environment), paren);
+                    Object a = first.execute(environment);
+                    Object b = second.execute(environment);
+                    Interpreter.checkArity(function, 2, paren);
+                    return function.call2(interpreter, a, b);
+                };
+            }
+            case 3: {
+                final ExprNode first = arguments[0];
+                final ExprNode second = arguments[1];
+                final ExprNode third = arguments[2];
+                return environment -> {
+                    LoxCallable function = callable(callee.execute(environment), paren);
+                    Object a = first.execute(environment);
+                    Object b = second.execute(environment);
+                    Object c = third.execute(environment);
+                    Interpreter.checkArity(function, 3, paren);
+                    return function.call3(interpreter, a, b, c);
+                };
+            }
+            case 4: {
+                final ExprNode first = arguments[0];
+                final ExprNode second = arguments[1];
+                final ExprNode third = arguments[2];
+                final ExprNode fourth = arguments[3];
+                return environment -> {
+                    LoxCallable function = callable(callee.execute(environment), paren);
+                    Object a = first.execute(environment);
+                    Object b = second.execute(environment);
+                    Object c = third.execute(environment);
+                    Object d = fourth.execute(environment);
+                    Interpreter.checkArity(function, 4, paren);
+                    return function.call4(interpreter, a, b, c, d);
+                };
+            }
+            default:
+                return environment -> call(callee.execute(environment), paren, arguments, environment);
+        }
+    }
+
+    // An obj.method() call. A method is called with the instance as its receiver
+    // instead of being bound first, its arguments evaluated straight into its
+    // frame; a field holding a callable is called as usual. In tail position
+    // the method call is left pending instead of made.
+    private ExprNode invoke(Expr.Get get, final Token paren, final ExprNode[] arguments, final boolean tail) {
+        final ExprNode object = compile(get.object);
+        final Token name = get.name;
+        final InlineCache cache = get.cache;
+        return environment -> {
+            Object instance = object.execute(environment);
+            if (!(instance instanceof LoxInstance)) {
+                throw new RuntimeError(name,"Only instances have properties.");
+            }
+            LoxInstance receiver = (LoxInstance) instance;
+            LoxFunction method = receiver.getMethod(name, cache);
+            if (method == null) {
+                return call(receiver.getProperty(name, cache), paren, arguments, environment);
+            }
+
+            PendingCall call = prepare(method, method.newFrame(receiver), paren, arguments, environment);
+            if (tail) return call;
+            return method.invoke(interpreter, call.frame);
+        };
+    }
+
+    private PendingCall prepare(LoxFunction function, Environment frame, Token paren, ExprNode[] arguments,
+                                Environment environment) {
+        for (ExprNode argument : arguments) {
+            frame.define(argument.execute(environment));
+        }
+        Interpreter.checkArity(function, arguments.length, paren);
+        return interpreter.pendingCall.set(function, frame);
+    }
+
+    // A call whose callee is only known when it runs goes through the entry
+    // point for its argument count all the same.
+    private Object call(Object callee, Token paren, ExprNode[] arguments, Environment environment) {
+        LoxCallable function = callable(callee, paren);
+        switch (arguments.length) {
+            case 0: {
+                Interpreter.checkArity(function, 0, paren);
+                return function.call0(interpreter);
+            }
+            case 1: {
+                Object a = arguments[0].execute(environment);
+                Interpreter.checkArity(function, 1, paren);
+                return function.call1(interpreter, a);
+            }
+            case 2: {
+                Object a = arguments[0].execute(environment);
+                Object b = arguments[1].execute(environment);
+                Interpreter.checkArity(function, 2, paren);
+                return function.call2(interpreter, a, b);
+            }
+            case 3: {
+                Object a = arguments[0].execute(environment);
+                Object b = arguments[1].execute(environment);
+                Object c = arguments[2].execute(environment);
+                Interpreter.checkArity(function, 3, paren);
+                return function.call3(interpreter, a, b, c);
+            }
+            case 4: {
+                Object a = arguments[0].execute(environment);
+                Object b = arguments[1].execute(environment);
+                Object c = arguments[2].execute(environment);
+                Object d = arguments[3].execute(environment);
+                Interpreter.checkArity(function, 4, paren);
+                return function.call4(interpreter, a, b, c, d);
+            }
+        }
+
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = arguments[i].execute(environment);
+        }
+        Interpreter.checkArity(function, values.length, paren);
+        return function.call(interpreter, Arrays.asList(values));
+    }
+
+    private static LoxCallable callable(Object callee, Token paren) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren,"Can only call functions and classes.");
+        }
+        return (LoxCallable)callee;
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr) {
+        final ExprNode object = compile(expr.object);
+        final Token name = expr.name;
+        final InlineCache cache = expr.cache;
+        return environment -> {
+            Object instance = object.execute(environment);
+            if (instance instanceof LoxInstance) {
+                return ((LoxInstance) instance).getProperty(name, cache);
+            }
+            throw new RuntimeError(name,"Only instances have properties.");
+        };
+    }
+
+    // A grouping only matters to the parser, so it compiles to its inner expression.
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        final Object value = expr.value;
+        return environment -> value;
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        final ExprNode left = compile(expr.left);
+        final ExprNode right = compile(expr.right);
+        if (expr.operator.type == TokenType.OR) {
+            return environment -> {
+                Object value = left.execute(environment);
+                if (Interpreter.isTruthy(value)) return value;
+                return right.execute(environment);
+            };
+        }
+        return environment -> {
+            Object value = left.execute(environment);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.execute(environment);
+        };
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr) {
+        final ExprNode value = compile(expr.value);
+        final ExprNode object = compile(expr.object);
+        final String name = expr.name.lexeme;
+        final Token token = expr.name;
+        final InlineCache cache = expr.cache;
+        return environment -> {
+            Object result = value.execute(environment);
+            Object instance = object.execute(environment);
+            if (instance instanceof LoxInstance) {
+                ((LoxInstance) instance).set(name, result, cache);
+                return result;
+            }
+            throw new RuntimeError(token,"Only instances have fields.");
+        };
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super expr) {
+        final ExprNode superclass = variable(expr.access, expr.slot, null);
+        final ExprNode self = compile(expr.self);
+        final Token method = expr.method;
+        return environment -> {
+            LoxClass superClass = (LoxClass)superclass.execute(environment);
+            LoxInstance receiver = (LoxInstance)self.execute(environment);
+            LoxFunction function = superClass.findMethod(receiver,method.lexeme);
+            if (function == null) {
+                throw new RuntimeError(method,"Undefined property" + method.lexeme + ".");
+            }
+            return function;
+        };
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr) {
+        return variable(expr.access, expr.slot, null);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        final ExprNode right = compile(expr.right);
+        final Token operator = expr.operator;
+        if (operator.type == TokenType.MINUS) {
+            return new NegateNode(operator, right);
+        }
+        return environment -> !Interpreter.isTruthy(right.execute(environment));
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.access, expr.slot, expr.name);
+    }
+
+    // A read of a variable, of the kind the Resolver found it to be.
+    private ExprNode variable(Access access, int slot, Token name) {
+        switch (access) {
+            case LOCAL: return new VariableNode.Local(slot);
+            case CELL: return new VariableNode.Captured(slot);
+            case UPVALUE: return new VariableNode.Upvalue(slot);
+            default: return new VariableNode.Global(globals, globals.slot(name.lexeme), name);
+        }
+    }
+
+}
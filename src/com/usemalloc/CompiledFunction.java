@@ -0,0 +1,28 @@
+package com.usemalloc;
+
+// A function whose body was compiled by ClosureCompiler. The body is compiled
+// once per declaration and shared by every closure created from it.
+
+class CompiledFunction extends LoxFunction {
+    private final StmtNode[] body;
+
+    CompiledFunction(Stmt.Function declaration, Cell[] upvalues, boolean isMethod, boolean isInitializer,
+                     LoxInstance receiver, StmtNode[] body) {
+        super(declaration, upvalues, isMethod, isInitializer, receiver);
+        this.body = body;
+    }
+
+    @Override
+    LoxFunction bind(LoxInstance self) {
+        return new CompiledFunction(declaration, upvalues, true, isInitializer, self, body);
+    }
+
+    @Override
+    Object execute(Interpreter interpreter, Environment environment) {
+        for (StmtNode statement : body) {
+            Object result = statement.execute(environment);
+            if (result != StmtNode.NORMAL) return result;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,643 @@
+package com.usemalloc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.usemalloc.OpCode.*;
+
+// Compiles a resolved syntax tree into bytecode for the VM. It runs after the
+// Resolver, so the program is known to be free of scoping errors; the compiler
+// still tracks scopes itself because the VM keeps locals in stack slots and
+// closures capture them through upvalues rather than environments.
+
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER
+    }
+
+    private static class Local {
+        final String name;
+        // -1 until the variable's initializer has run.
+        int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    // The state for the function currently being compiled. Nested function
+    // declarations push a new one that points back to its enclosing state.
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final Obj.Function function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, Obj.Function function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+
+            // Slot 0 holds the function being called, or the receiver in methods.
+            String name = type == FunctionType.METHOD || type == FunctionType.INITIALIZER ? "this" : "";
+            locals.add(new Local(name, 0));
+        }
+    }
+
+    private final Globals globals;
+    private FunctionState current;
+
+    // The line of the last token seen, used for instructions whose node has no token.
+    private int line = 1;
+
+    Compiler(Globals globals) {
+        this.globals = globals;
+    }
+
+    Obj.Function compile(List<Stmt> statements) {
+        current = new FunctionState(null, new Obj.Function(null), FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+        return current.function;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    // Statements.
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+        emitOp(CLASS);
+        emitShort(nameConstant);
+        defineVariable(stmt.name);
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+
+            // The superclass is kept in a local named "super" for the methods to capture.
+            beginScope();
+            addLocal("super");
+            markInitialized();
+
+            namedVariable(stmt.name);
+            emitOp(INHERIT);
+        }
+
+        // The class stays on the stack while its methods are attached.
+        namedVariable(stmt.name);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = method.name.lexeme.equals("init")
+                    ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            emitOp(METHOD);
+            emitShort(makeConstant(method.name.lexeme));
+        }
+        emitOp(POP);
+
+        if (stmt.superclass != null) endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(POP);
+        return null;
+    }
+
+    // The initializer's variable is a local of the loop's own scope. The
+    // increment runs after the body, before jumping back to the condition.
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) compile(stmt.initializer);
+
+        int loopStart = current.function.chunk.count;
+        int exitJump = -1;
+        if (stmt.condition != null) {
+            compile(stmt.condition);
+            exitJump = emitJump(JUMP_IF_FALSE);
+            emitOp(POP);
+        }
+
+        compile(stmt.body);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emitOp(POP);
+        }
+        emitLoop(loopStart);
+
+        if (exitJump != -1) {
+            patchJump(exitJump);
+            emitOp(POP);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declareVariable(stmt.name);
+        // A local function may refer to itself, so it is usable before its body is compiled.
+        markInitialized();
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(JUMP_IF_FALSE);
+        emitOp(POP);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(JUMP);
+        patchJump(thenJump);
+        emitOp(POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else {
+            compile(stmt.value);
+            emitOp(RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        declareVariable(stmt.name);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(NIL);
+        }
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(JUMP_IF_FALSE);
+        emitOp(POP);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emitOp(POP);
+        return null;
+    }
+
+    // Expressions.
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        setVariable(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+
+        switch (expr.operator.type) {
+            case BANG_EQUAL:    emitOp(NOT_EQUAL); break;
+            case EQUAL_EQUAL:   emitOp(EQUAL); break;
+            case GREATER:       emitOp(GREATER); break;
+            case GREATER_EQUAL: emitOp(GREATER_EQUAL); break;
+            case LESS:          emitOp(LESS); break;
+            case LESS_EQUAL:    emitOp(LESS_EQUAL); break;
+            case PLUS:          emitOp(ADD); break;
+            case MINUS:         emitOp(SUBTRACT); break;
+            case STAR:          emitOp(MULTIPLY); break;
+            case SLASH:         emitOp(DIVIDE); break;
+        }
+        return null;
+    }
+
+    // Calls on a property or on super skip creating a bound method.
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            arguments(expr.arguments);
+            line = expr.paren.line;
+            emitOp(INVOKE);
+            emitShort(makeConstant(get.name.lexeme));
+            emitByte(expr.arguments.size());
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            line = superExpr.keyword.line;
+            getVariable("this");
+            arguments(expr.arguments);
+            getVariable("super");
+            line = expr.paren.line;
+            emitOp(SUPER_INVOKE);
+            emitShort(makeConstant(superExpr.method.lexeme));
+            emitByte(expr.arguments.size());
+        } else {
+            compile(expr.callee);
+            arguments(expr.arguments);
+            line = expr.paren.line;
+            emitOp(CALL);
+            emitByte(expr.arguments.size());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(GET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(NIL);
+        } else if (expr.value == Boolean.TRUE) {
+            emitOp(TRUE);
+        } else if (expr.value == Boolean.FALSE) {
+            emitOp(FALSE);
+        } else {
+            emitOp(CONSTANT);
+            emitShort(makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    // Both operators leave the left operand on the stack when it decides the result.
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(JUMP_IF_FALSE);
+            int endJump = emitJump(JUMP);
+            patchJump(elseJump);
+            emitOp(POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(JUMP_IF_FALSE);
+            emitOp(POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    // The value is evaluated before the object, the same order the Interpreter uses.
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.value);
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(SET_PROPERTY);
+        emitShort(makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        getVariable("this");
+        getVariable("super");
+        emitOp(GET_SUPER);
+        emitShort(makeConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        getVariable("this");
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        if (expr.operator.type == TokenType.MINUS) {
+            emitOp(NEGATE);
+        } else {
+            emitOp(NOT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        namedVariable(expr.name);
+        return null;
+    }
+
+    // Functions.
+
+    // Compiles the function body into its own chunk and emits the closure that creates it at runtime.
+    private void function(Stmt.Function stmt, FunctionType type) {
+        line = stmt.name.line;
+        FunctionState state = new FunctionState(current, new Obj.Function(stmt.name.lexeme), type);
+        current = state;
+        beginScope();
+
+        for (Token param : stmt.parameters) {
+            current.function.arity++;
+            declareVariable(param);
+            markInitialized();
+        }
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+        emitReturn();
+
+        current = state.enclosing;
+        state.function.upvalueCount = state.upvalues.size();
+
+        emitOp(CLOSURE);
+        emitShort(makeConstant(state.function));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte(upvalue.index);
+        }
+    }
+
+    private void arguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    // Variables.
+
+    private void namedVariable(Token name) {
+        line = name.line;
+        getVariable(name.lexeme);
+    }
+
+    private void getVariable(String name) {
+        int slot = resolveLocal(current, name);
+        if (slot != -1) {
+            emitOp(GET_LOCAL);
+            emitByte(slot);
+            return;
+        }
+        int upvalue = resolveUpvalue(current, name);
+        if (upvalue != -1) {
+            emitOp(GET_UPVALUE);
+            emitByte(upvalue);
+            return;
+        }
+        emitOp(GET_GLOBAL);
+        emitShort(globalSlot(name));
+    }
+
+    private void setVariable(String name) {
+        int slot = resolveLocal(current, name);
+        if (slot != -1) {
+            emitOp(SET_LOCAL);
+            emitByte(slot);
+            return;
+        }
+        int upvalue = resolveUpvalue(current, name);
+        if (upvalue != -1) {
+            emitOp(SET_UPVALUE);
+            emitByte(upvalue);
+            return;
+        }
+        emitOp(SET_GLOBAL);
+        emitShort(globalSlot(name));
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    // Looks the name up in the enclosing functions, adding an upvalue to every
+    // function between the one that declares it and this one.
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+        if (state.upvalues.size() == 256) {
+            Lox.error(line, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    // Globals are late bound, a local takes the next stack slot.
+    private void declareVariable(Token name) {
+        line = name.line;
+        if (current.scopeDepth == 0) return;
+        addLocal(name.lexeme);
+    }
+
+    private void addLocal(String name) {
+        if (current.locals.size() == 256) {
+            Lox.error(line, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name, -1));
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) return;
+        current.locals.get(current.locals.size() - 1).depth = current.scopeDepth;
+    }
+
+    // The value is on top of the stack. A local simply stays there.
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+        emitOp(DEFINE_GLOBAL);
+        emitShort(globalSlot(name.lexeme));
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    // Pops the scope's locals, moving the captured ones off the stack into their upvalues.
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).isCaptured) {
+                emitOp(CLOSE_UPVALUE);
+            } else {
+                emitOp(POP);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    // Emitting.
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void emitByte(int value) {
+        chunk().write(value, line);
+    }
+
+    private void emitOp(byte op) {
+        chunk().write(op, line);
+    }
+
+    private void emitShort(int value) {
+        emitByte((value >> 8) & 0xff);
+        emitByte(value & 0xff);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOp(GET_LOCAL);
+            emitByte(0);
+        } else {
+            emitOp(NIL);
+        }
+        emitOp(RETURN);
+    }
+
+    private int emitJump(byte op) {
+        emitOp(op);
+        emitShort(0xffff);
+        return chunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        // -2 to adjust for the jump offset itself.
+        int jump = chunk().count - offset - 2;
+        if (jump > 0xffff) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        chunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(LOOP);
+        int offset = chunk().count - loopStart + 2;
+        if (offset > 0xffff) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    // Globals are numbered across the whole program, so a script can run out
+    // of the two bytes an instruction has for the slot.
+    private int globalSlot(String name) {
+        int slot = globals.slot(name);
+        if (slot > 0xffff) {
+            Lox.error(line, "Too many global variables.");
+            return 0;
+        }
+        return slot;
+    }
+
+    private int makeConstant(Object value) {
+        int constant = chunk().addConstant(value);
+        if (constant > 0xffff) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+}
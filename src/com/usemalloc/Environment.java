@@ -1,65 +1,87 @@
 package com.usemalloc;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Created by ujjawalpathak on 11/07/17.
  */
 
+// The frame of a function call, or of a scope at the top level. Variables live
+// in a plain array and are addressed by the slot the Resolver assigned them, so
+// reading one is an index rather than a name lookup. A variable a closure
+// captures holds a Cell in its slot instead of the value. The variables the
+// function captured itself are in upvalues, there is no chain of enclosing
+// frames. Globals are not stored here, see Interpreter.globals.
+//
+// A number stored with setDouble stays unboxed: its slot holds the NUMBER
+// marker and the value goes in the parallel numbers array, which is only
+// allocated once a frame stores its first number. get boxes it on the way out.
+// Slots holding a Cell are never stored to with setDouble.
+
 public class Environment {
 
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private static final Object NUMBER = new Object();
 
-    Environment() {
-        enclosing = null;
-    }
+    static final Cell[] NO_UPVALUES = new Cell[0];
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
-    }
+    final Cell[] upvalues;
+    private Object[] values;
+    private double[] numbers;
+    private int count = 0;
 
-    void define(String name, Object value) {
-        values.put(name,value);
+    Environment(Cell[] upvalues, int capacity) {
+        this.upvalues = upvalues;
+        this.values = new Object[capacity];
     }
 
-    // If the variable is found, it simply returns the value bound to it.
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+    // Fills a new frame in order: the receiver of a method, then the arguments,
+    // which is the order the Resolver numbered them in.
+    void define(Object value) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, Math.max(4, count * 2));
         }
+        values[count++] = value;
+    }
 
-        if (enclosing != null) return enclosing.get(name);
-
-        throw new RuntimeError(name,"Undefined variable'" + name.lexeme + "'.");
-
+    // A declaration stores to the slot the Resolver laid it out in. Every
+    // block of the function puts its variables in the slots of this one,
+    // which is why slots are not simply handed out in order.
+    void define(int slot, Object value) {
+        values[slot] = value;
     }
 
+    Object get(int slot) {
+        Object value = values[slot];
+        if (value == NUMBER) return numbers[slot];
+        return value;
+    }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme,value);
-            return;
-        }
-        if (enclosing != null) {
-            enclosing.assign(name,value);
-            return;
-        }
-        throw new RuntimeError(name,"Undefined variable'" + name.lexeme + "'.");
+    double getDouble(int slot) throws UnexpectedResultException {
+        Object value = values[slot];
+        if (value == NUMBER) return numbers[slot];
+        return ExprNode.expectDouble(value);
+    }
 
+    void set(int slot, Object value) {
+        values[slot] = value;
     }
 
-    Object getAt(int distance, String name) {
-        Environment environment = this;
-        for (int i =0; i<distance; i++) {
-            environment = environment.enclosing;
+    void setDouble(int slot, double value) {
+        if (numbers == null || numbers.length < values.length) {
+            numbers = numbers == null ? new double[values.length] : Arrays.copyOf(numbers, values.length);
         }
-        return environment.values.get(name);
+        values[slot] = NUMBER;
+        numbers[slot] = value;
     }
 
+    // The Cell of a captured variable.
+    Cell cell(int slot) {
+        return (Cell) values[slot];
+    }
 
-
-
+    // Moves a value already in the frame, a captured parameter, into a Cell.
+    void box(int slot) {
+        values[slot] = new Cell(get(slot));
+    }
 
 }
@@ -30,6 +30,10 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+
+        Access access = Access.GLOBAL;
+        int slot = -1;
+        int globalSlot = -1;
     }
 
     static class Binary extends Expr {
@@ -76,6 +80,8 @@ abstract class Expr {
 
         final Expr object;
         final Token name;
+
+        InlineCache cache = new InlineCache();
     }
 
     static class Grouping extends Expr {
@@ -132,6 +138,8 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+
+        InlineCache cache = new InlineCache();
     }
 
     static class Super extends Expr {
@@ -146,6 +154,10 @@ abstract class Expr {
 
         final Token keyword;
         final Token method;
+
+        Access access = Access.GLOBAL;
+        int slot = -1;
+        Expr.This self = null;
     }
 
     static class This extends Expr {
@@ -158,6 +170,9 @@ abstract class Expr {
         }
 
         final Token keyword;
+
+        Access access = Access.GLOBAL;
+        int slot = -1;
     }
 
     static class Unary extends Expr {
@@ -184,6 +199,10 @@ abstract class Expr {
         }
 
         final Token name;
+
+        Access access = Access.GLOBAL;
+        int slot = -1;
+        int globalSlot = -1;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,27 @@
+package com.usemalloc;
+
+// An expression compiled by ClosureCompiler. Everything that can be decided
+// from the syntax tree, like the operator or the variable's slot, is already
+// baked into the node, so executing it only does the work left for runtime.
+//
+// Nodes that can produce a number without boxing it override executeDouble,
+// and parents that want a number call it instead of execute. A Double is
+// only allocated once the number escapes into an Object.
+
+interface ExprNode {
+    Object execute(Environment environment);
+
+    default double executeDouble(Environment environment) throws UnexpectedResultException {
+        return expectDouble(execute(environment));
+    }
+
+    // Evaluates the expression for its side effects, as an expression statement does.
+    default void executeVoid(Environment environment) {
+        execute(environment);
+    }
+
+    static double expectDouble(Object value) throws UnexpectedResultException {
+        if (value instanceof Double) return (double)value;
+        throw new UnexpectedResultException(value);
+    }
+}
@@ -0,0 +1,109 @@
+package com.usemalloc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// The global variables. Each name gets a slot in a dense array the first time
+// it is seen and keeps it for the rest of the run, so an AST node can look its
+// slot up once and from then on read the array directly. Redefining a global
+// writes the same slot, which means a cached slot never goes stale.
+//
+// Numbers assigned through assignDouble are kept unboxed the same way
+// Environment keeps them: the slot holds NUMBER and the value is in numbers.
+
+class Globals {
+
+    // Marks a slot whose name was looked up but never defined.
+    private static final Object UNDEFINED = new Object();
+    private static final Object NUMBER = new Object();
+
+    private final Map<String,Integer> slots = new HashMap<>();
+    private String[] names = new String[16];
+    private Object[] values = new Object[16];
+    private double[] numbers = new double[16];
+    private int count = 0;
+
+    // Returns the slot for the name, reserving an undefined one if it is new.
+    int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) return slot;
+
+        if (count == values.length) {
+            names = Arrays.copyOf(names, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+            numbers = Arrays.copyOf(numbers, count * 2);
+        }
+        names[count] = name;
+        values[count] = UNDEFINED;
+        slots.put(name, count);
+        return count++;
+    }
+
+    void define(String name, Object value) {
+        // slot() may grow the arrays, so it has to run before values is read.
+        int slot = slot(name);
+        values[slot] = value;
+    }
+
+    Object get(int slot, Token name) {
+        Object value = values[slot];
+        if (value == UNDEFINED) {
+            throw new RuntimeError(name,"Undefined variable'" + name.lexeme + "'.");
+        }
+        if (value == NUMBER) return numbers[slot];
+        return value;
+    }
+
+    double getDouble(int slot, Token name) throws UnexpectedResultException {
+        Object value = values[slot];
+        if (value == NUMBER) return numbers[slot];
+        if (value == UNDEFINED) {
+            throw new RuntimeError(name,"Undefined variable'" + name.lexeme + "'.");
+        }
+        return ExprNode.expectDouble(value);
+    }
+
+    void assign(int slot, Token name, Object value) {
+        if (values[slot] == UNDEFINED) {
+            throw new RuntimeError(name,"Undefined variable'" + name.lexeme + "'.");
+        }
+        values[slot] = value;
+    }
+
+    void assignDouble(int slot, Token name, double value) {
+        if (values[slot] == UNDEFINED) {
+            throw new RuntimeError(name,"Undefined variable'" + name.lexeme + "'.");
+        }
+        values[slot] = NUMBER;
+        numbers[slot] = value;
+    }
+
+    // Reads a slot without checking it, for callers that only compare the value.
+    Object value(int slot) {
+        return values[slot];
+    }
+
+    // The bytecode VM resolves global slots at compile time and reports errors by line.
+
+    void define(int slot, Object value) {
+        values[slot] = value;
+    }
+
+    Object get(int slot, int line) {
+        Object value = values[slot];
+        if (value == UNDEFINED) {
+            throw new RuntimeError(line,"Undefined variable'" + names[slot] + "'.");
+        }
+        if (value == NUMBER) return numbers[slot];
+        return value;
+    }
+
+    void assign(int slot, int line, Object value) {
+        if (values[slot] == UNDEFINED) {
+            throw new RuntimeError(line,"Undefined variable'" + names[slot] + "'.");
+        }
+        values[slot] = value;
+    }
+
+}
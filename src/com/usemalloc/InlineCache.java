@@ -0,0 +1,66 @@
+package com.usemalloc;
+
+import java.util.Arrays;
+
+// Remembers what a property access in the syntax tree found last time, keyed
+// by the shape of the instance it was made on. Since a shape fixes both the
+// field layout and the class, a hit tells a get which field index to read or
+// which method to bind, and a set which index to write and which shape the
+// instance moves to, without looking anything up.
+//
+// A cache starts empty, holds a single shape while the access only ever sees
+// one (monomorphic), up to LIMIT shapes after that (polymorphic), and gives up
+// once it sees more (megamorphic), leaving every access to the full lookup.
+
+final class InlineCache {
+
+    private static final int LIMIT = 4;
+
+    private Shape[] shapes = new Shape[1];
+    // For each shape: the field's index, or -1 if a get found a method.
+    private int[] indices = new int[1];
+    // For each shape: the method a get found, or the shape a set moves the
+    // instance to when it adds the field. Null when a set writes an existing field.
+    private Object[] targets = new Object[1];
+    private int count = 0;
+    private boolean megamorphic = false;
+
+    // Returns the entry for the shape, or -1 on a miss.
+    int find(Shape shape) {
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) return i;
+        }
+        return -1;
+    }
+
+    int index(int entry) {
+        return indices[entry];
+    }
+
+    Object target(int entry) {
+        return targets[entry];
+    }
+
+    void add(Shape shape, int index, Object target) {
+        if (megamorphic) return;
+        if (count == LIMIT) {
+            megamorphic = true;
+            count = 0;
+            shapes = null;
+            indices = null;
+            targets = null;
+            return;
+        }
+
+        if (count == shapes.length) {
+            shapes = Arrays.copyOf(shapes, LIMIT);
+            indices = Arrays.copyOf(indices, LIMIT);
+            targets = Arrays.copyOf(targets, LIMIT);
+        }
+        shapes[count] = shape;
+        indices[count] = index;
+        targets[count] = target;
+        count++;
+    }
+
+}
@@ -12,11 +12,16 @@ import static com.usemalloc.TokenType.*;
  */
 
 // It declares that it's a visitor. The return type of the visit method is Object.
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr,Integer> locals = new HashMap<>();
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
+
+    // Every variable other than a global is in a slot of the current frame,
+    // or in a Cell it or its function's upvalues hold; at top level the
+    // environment is null.
+    final Globals globals = new Globals();
+    private Environment environment = null;
+    // The one call made ready by prepareCall, which is always run or handed
+    // back before another call is prepared.
+    final PendingCall pendingCall = new PendingCall();
    // Map<String, LoxFunction> methods = new HashMap<>();
 
 
@@ -28,6 +33,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
         @Override
                 public Object call(Interpreter interpreter,List<Object> arguments) {
+                return call0(interpreter);
+        }
+        @Override
+                public Object call0(Interpreter interpreter) {
                 return (double) System.currentTimeMillis() / 1000.0;
         }
         });
@@ -53,8 +62,14 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    // Executing a statement returns NORMAL when control goes on to the next
+    // statement, or the value of the return statement that ended it. Returning
+    // from a function is then ordinary control flow: every block and loop hands
+    // the value outward until LoxFunction receives it.
+    static final Object NORMAL = new Object();
+
+    private Object execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
     // Evaluating Unary Expression.
@@ -75,30 +90,40 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return environment.get(expr.name);
+        if (expr.access != Access.GLOBAL) {
+            return lookUp(expr.access,expr.slot);
+        }
+
+        // The first lookup of a global finds its slot by name, later ones reuse the slot cached on the node.
+        if (expr.globalSlot < 0) expr.globalSlot = globals.slot(expr.name.lexeme);
+        return globals.get(expr.globalSlot,expr.name);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator,"Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator,"Operands must be a number.");
     }
 
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         // nil is only equal to nil.
         if (a == null && b == null) return true;
         if (a == null) return false;
+        // Strings are equal by their characters, whether flattened yet or not.
+        if (a instanceof CharSequence && b instanceof CharSequence) {
+            return Rope.equal((CharSequence)a, (CharSequence)b);
+        }
 
         return a.equals(b);
     }
@@ -137,8 +162,8 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     return (double)left + (double)right;
                 }
 
-                if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                if (left instanceof CharSequence && right instanceof CharSequence) {
+                    return Rope.concat((CharSequence)left, (CharSequence)right);
                 }
 
                 throw new RuntimeError(expr.operator, "Operands must ve two numbers or two strings.");
@@ -178,7 +203,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -194,99 +219,128 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     // It evaluates the inner expression using existing evaluate() method and discards the value.
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt,environment);
+    public Object visitFunctionStmt(Stmt.Function stmt) {
+        // A captured function gets its Cell first, so that it can capture itself.
+        Cell cell = stmt.captured ? newCell(stmt.slot) : null;
+        LoxFunction function = new LoxFunction(stmt,LoxFunction.capture(stmt,environment));
         //LoxFunction function = new LoxFunction(stmt);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+        if (cell != null) {
+            cell.value = function;
+        } else {
+            define(stmt.name, stmt.slot, function);
+        }
+        return NORMAL;
     }
 
 
     // Before discarding the expression's value it converts it to a string using the stringify() method and then dumps it to stdout.
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Object visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Object visitReturnStmt(Stmt.Return stmt) {
+        // A call in tail position is left pending for LoxFunction.invoke, which
+        // makes it once this function's own Java frames are gone.
+        if (stmt.tailCall) return prepareCall((Expr.Call) stmt.value);
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
-        throw new Return(value);
+        return value;
     }
 
     // If the variable has an initializer, it evaluates it.
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Object visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme,value);
-        return null;
+        define(stmt.name,stmt.slot,stmt.captured ? new Cell(value) : value);
+        return NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        environment.assign(expr.name,value);
+
+        if (expr.access != Access.GLOBAL) {
+            store(expr.access,expr.slot,value);
+        } else {
+            if (expr.globalSlot < 0) expr.globalSlot = globals.slot(expr.name.lexeme);
+            globals.assign(expr.globalSlot,expr.name,value);
+        }
         return value;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements,new Environment(environment));
-        return null;
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.size < 0) {
+            // The Resolver put the block's variables in the current frame.
+            for (Stmt statement : stmt.statements) {
+                Object result = execute(statement);
+                if (result != NORMAL) return result;
+            }
+            return NORMAL;
+        }
+        // A block at the top level has a frame of its own.
+        return executeBlock(stmt.statements,new Environment(Environment.NO_UPVALUES,stmt.size));
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
-       environment.define(stmt.name.lexeme,null);
-
+    public Object visitClassStmt(Stmt.Class stmt) {
         Map<String,LoxFunction> methods = new HashMap<>();
         Object superClass = null;
+        // A captured class gets its Cell first, so that its methods can capture it.
+        Cell cell = stmt.captured ? newCell(stmt.slot) : null;
+        Environment previous = environment;
         if (stmt.superclass != null) {
             superClass = evaluate(stmt.superclass);
             if (!(superClass instanceof LoxClass)) {
                 throw new RuntimeError(stmt.name,"Superclass must be a class.");
             }
-            environment = new Environment(environment);
-            environment.define("super",superClass);
+            // At the top level the scope holding "super" is a frame of its own.
+            if (stmt.size >= 0) environment = new Environment(Environment.NO_UPVALUES,stmt.size);
+            environment.define(stmt.superSlot,new Cell(superClass));
         }
         for (Stmt.Function method: stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+            LoxFunction function = new LoxFunction(method, LoxFunction.capture(method,environment),
+                    method.name.lexeme.equals("init"));
             methods.put(method.name.lexeme,function);
         }
+        environment = previous;
 
         LoxClass klass = new LoxClass(stmt.name.lexeme,(LoxClass)superClass, methods);
 
-        if (superClass != null) {
-            environment = environment.enclosing;
+        if (cell != null) {
+            cell.value = klass;
+        } else {
+            define(stmt.name,stmt.slot,klass);
         }
-
-        environment.assign(stmt.name,klass);
-        return null;
+        return NORMAL;
 
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    Object executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
             for (Stmt statement: statements) {
-                execute(statement);
+                Object result = execute(statement);
+                if (result != NORMAL) return result;
             }
+            return NORMAL;
         } finally {
             this.environment = previous;
         }
@@ -294,13 +348,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Object visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return NORMAL;
     }
 
     // Logical Operator
@@ -311,18 +365,40 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (expr.operator.type == TokenType.OR) {
             if (isTruthy(left)) return left;
         } else {
-            if (isTruthy(left)) return left;
+            if (!isTruthy(left)) return left;
         }
         return evaluate(expr.right);
     }
 
     // While loop
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Object visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            Object result = execute(stmt.body);
+            if (result != NORMAL) return result;
+        }
+        return NORMAL;
+    }
+
+    // The loop's frame is created once, if it is at the top level and needs one,
+    // and the increment is evaluated in it after each run of the body.
+    @Override
+    public Object visitForStmt(Stmt.For stmt) {
+        Environment previous = this.environment;
+        try {
+            if (stmt.size >= 0) this.environment = new Environment(Environment.NO_UPVALUES, stmt.size);
+            if (stmt.initializer != null) execute(stmt.initializer);
+
+            while (stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
+                Object result = execute(stmt.body);
+                if (result != NORMAL) return result;
+
+                if (stmt.increment != null) evaluate(stmt.increment);
+            }
+            return NORMAL;
+        } finally {
+            this.environment = previous;
         }
-        return null;
     }
 
 
@@ -330,28 +406,115 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     // Then it evaluates each of the argument expressions in order and stores the resulting values in a list.
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        try {
+            Object result = prepareCall(expr);
+            if (result != pendingCall) return result;
+            return pendingCall.function.invoke(this, pendingCall.frame);
+        } catch (StackOverflowError error) {
+            // Running out of Java stack is reported at the call that went too
+            // deep, like the VM reports running past its frame limit.
+            throw new RuntimeError(expr.paren, "Stack overflow.");
+        }
+    }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+    // Evaluates the callee and the arguments of a call. A call to a Lox function
+    // is not made here: its arguments go straight into its new frame, which is
+    // left in pendingCall for the caller to run. Anything else is called at once.
+    private Object prepareCall(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            return prepareInvoke((Expr.Get) expr.callee, expr);
+        }
+        return prepareCall(evaluate(expr.callee), expr);
+    }
 
-            if (!(callee instanceof LoxCallable)) {
-                throw new RuntimeError(expr.paren,"Can only call functions and classes.");
-            }
+    // An obj.method() call. A method is called with the instance as its receiver
+    // instead of being bound first; a field holding a callable is called as usual.
+    private Object prepareInvoke(Expr.Get get, Expr.Call expr) {
+        Object object = evaluate(get.object);
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(get.name,"Only instances have properties.");
+        }
+        LoxInstance receiver = (LoxInstance) object;
+        LoxFunction method = receiver.getMethod(get.name, get.cache);
+        if (method == null) {
+            return prepareCall(receiver.getProperty(get.name, get.cache), expr);
         }
+        return prepareFrame(method, method.newFrame(receiver), expr);
+    }
+
+    private Object prepareCall(Object callee, Expr.Call expr) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(expr.paren,"Can only call functions and classes.");
+        }
+
+        List<Expr> arguments = expr.arguments;
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)callee;
+            return prepareFrame(function, function.newFrame(function.receiver), expr);
+        }
+
         LoxCallable function = (LoxCallable)callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expect" + function.arity() + "arguments but got" + arguments.size() + ".");
+        switch (arguments.size()) {
+            case 0: {
+                checkArity(function, 0, expr.paren);
+                return function.call0(this);
+            }
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                checkArity(function, 1, expr.paren);
+                return function.call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                checkArity(function, 2, expr.paren);
+                return function.call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                checkArity(function, 3, expr.paren);
+                return function.call3(this, a, b, c);
+            }
+            case 4: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                Object d = evaluate(arguments.get(3));
+                checkArity(function, 4, expr.paren);
+                return function.call4(this, a, b, c, d);
+            }
+        }
+
+        List<Object> values = new ArrayList<>();
+        for (Expr argument : arguments) {
+            values.add(evaluate(argument));
+        }
+        checkArity(function, values.size(), expr.paren);
+        return function.call(this,values);
+    }
+
+    private PendingCall prepareFrame(LoxFunction function, Environment frame, Expr.Call expr) {
+        for (Expr argument : expr.arguments) {
+            frame.define(evaluate(argument));
+        }
+        checkArity(function, expr.arguments.size(), expr.paren);
+        return pendingCall.set(function, frame);
+    }
+
+    // The one arity check of a call, made by the call site so callees can trust the count.
+    static void checkArity(LoxCallable function, int count, Token paren) {
+        if (count != function.arity()) {
+            throw new RuntimeError(paren, "Expect" + function.arity() + "arguments but got" + count + ".");
         }
-        return function.call(this,arguments);
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).getProperty(expr.name);
+            return ((LoxInstance) object).getProperty(expr.name, expr.cache);
         }
         throw new RuntimeError(expr.name,"Only instances have properties.");
     }
@@ -362,7 +525,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         Object object = evaluate(expr.object);
 
         if (object instanceof LoxInstance) {
-            ((LoxInstance)object).fields.put(expr.name.lexeme,value);
+            ((LoxInstance)object).set(expr.name.lexeme,value,expr.cache);
             return value;
         }
         throw new RuntimeError(expr.name,"Only instances have fields.");
@@ -370,10 +533,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superClass = (LoxClass)environment.getAt(distance,"super");
+        LoxClass superClass = (LoxClass)lookUp(expr.access,expr.slot);
 
-        LoxInstance receiver = (LoxInstance)environment.getAt(distance - 1,"this");
+        LoxInstance receiver = (LoxInstance)evaluate(expr.self);
         LoxFunction method = superClass.findMethod(receiver,expr.method.lexeme);
 
         if (method == null) {
@@ -384,17 +546,48 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword,expr);
+        return lookUp(expr.access,expr.slot);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance,name.lexeme);
+    // Declarations at top level go to the globals, anywhere else to the slot the Resolver gave them.
+    // A captured one is stored as a Cell, a new one each time the declaration runs.
+    private void define(Token name, int slot, Object value) {
+        if (slot < 0) {
+            globals.define(name.lexeme,value);
         } else {
-            return globals.get(name);
+            environment.define(slot,value);
         }
+    }
+
+    private Cell newCell(int slot) {
+        Cell cell = new Cell(null);
+        environment.define(slot,cell);
+        return cell;
+    }
 
+    // Reads a variable other than a global, wherever the Resolver found it.
+    private Object lookUp(Access access, int slot) {
+        switch (access) {
+            case LOCAL:
+                return environment.get(slot);
+            case CELL:
+                return environment.cell(slot).value;
+            default:
+                return environment.upvalues[slot].value;
+        }
+    }
+
+    private void store(Access access, int slot, Object value) {
+        switch (access) {
+            case LOCAL:
+                environment.set(slot,value);
+                break;
+            case CELL:
+                environment.cell(slot).value = value;
+                break;
+            default:
+                environment.upvalues[slot].value = value;
+        }
     }
 
 
@@ -0,0 +1,510 @@
+package com.usemalloc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// The hot tier of the tree-walker. After a function has been called THRESHOLD
+// times, LoxFunction asks the Jit to translate its body into a JVM class so
+// that HotSpot can compile it like any other Java code.
+//
+// Only numeric functions are translated: every parameter, local and result is
+// a number, kept in a JVM double local, and arithmetic and comparisons are
+// plain double instructions. The body may call the function itself, which
+// becomes a direct static call, or a jump back to the start when the call is
+// returned. Anything else, such as printing, strings, closures, other calls or
+// a body that can fall off its end, leaves the function to the interpreter.
+//
+// Since such a body can neither change a global nor see anything but numbers,
+// checking the arguments and the function's own global once, on entry, is
+// enough to guard the whole call.
+
+final class Jit {
+
+    static final int THRESHOLD = 1000;
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String DOUBLE = "java/lang/Double";
+
+    private static int classCount = 0;
+
+    private final JitCode code;
+    private final Globals globals;
+    // The global slot of the function's name, or -1 when it never calls itself.
+    private final int selfSlot;
+
+    private Jit(JitCode code, Globals globals, int selfSlot) {
+        this.code = code;
+        this.globals = globals;
+        this.selfSlot = selfSlot;
+    }
+
+    // Returns null when the function is not one the Jit can translate.
+    static Jit compile(LoxFunction function, Globals globals) {
+        Stmt.Function declaration = function.declaration;
+        if (function.upvalues.length != 0 || declaration.cellParameters.length != 0
+                || function.isMethod) return null;
+
+        String className = "lox/jit/" + declaration.name.lexeme + "$" + (classCount++);
+        ClassFile classFile = new ClassFile(className, OBJECT, "com/usemalloc/JitCode");
+
+        Translator translator = new Translator(classFile, className, declaration);
+        try {
+            translator.translate();
+        } catch (Unsupported | IllegalStateException error) {
+            return null;
+        }
+
+        addConstructor(classFile);
+        addBridge(classFile, className, declaration.parameters.size());
+
+        try {
+            Class<?> generated = new Loader().define(className.replace('/', '.'), classFile.toByteArray());
+            JitCode code = (JitCode)generated.getDeclaredConstructor().newInstance();
+            int selfSlot = translator.callsItself ? globals.slot(declaration.name.lexeme) : -1;
+            return new Jit(code, globals, selfSlot);
+        } catch (ReflectiveOperationException | LinkageError error) {
+            return null;
+        }
+    }
+
+    // Runs the compiled code, or returns null when the call fails the guard and
+    // has to be interpreted. Compiled code always returns a number, never nil.
+    Object call(LoxFunction function, Environment frame) {
+        Object[] arguments = new Object[function.arity()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = frame.get(i);
+            if (!(arguments[i] instanceof Double)) return null;
+        }
+        if (selfSlot != -1 && globals.value(selfSlot) != function) return null;
+
+        return code.call(arguments);
+    }
+
+    private static void addConstructor(ClassFile classFile) {
+        ClassFile.Code code = new ClassFile.Code();
+        code.maxLocals = 1;
+        code.op(ALOAD_0, 1);
+        code.opWide(INVOKESPECIAL, classFile.methodRef(OBJECT, "<init>", "()V"), -1);
+        code.op(RETURN, 0);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V", code);
+    }
+
+    // JitCode.call unboxes the arguments and hands them to the static method
+    // that holds the translated body.
+    private static void addBridge(ClassFile classFile, String className, int arity) {
+        ClassFile.Code code = new ClassFile.Code();
+        code.maxLocals = 2;
+        for (int i = 0; i < arity; i++) {
+            code.op(ALOAD_1, 1);
+            if (i <= 5) {
+                code.op(ICONST_0 + i, 1);
+            } else {
+                code.op(BIPUSH, i, 1);
+            }
+            code.op(AALOAD, -1);
+            code.opWide(CHECKCAST, classFile.classRef(DOUBLE), 0);
+            code.opWide(INVOKEVIRTUAL, classFile.methodRef(DOUBLE, "doubleValue", "()D"), 1);
+        }
+        code.opWide(INVOKESTATIC, classFile.methodRef(className, "run", runDescriptor(arity)), 2 - 2 * arity);
+        code.opWide(INVOKESTATIC, classFile.methodRef(DOUBLE, "valueOf", "(D)Ljava/lang/Double;"), -1);
+        code.op(ARETURN, -1);
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "call", "([Ljava/lang/Object;)Ljava/lang/Object;", code);
+    }
+
+    private static String runDescriptor(int arity) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int i = 0; i < arity; i++) {
+            descriptor.append('D');
+        }
+        return descriptor.append(")D").toString();
+    }
+
+    // Thrown while translating a body that uses something outside the numeric subset.
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        // It only unwinds the translation, so there is no stack trace to record.
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    // Each compiled function gets a loader of its own, so its class can be
+    // unloaded once the function is gone.
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(Jit.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    // Translates a function body into the static method run(D...)D. Numeric
+    // expressions leave a double on the stack; conditions are translated into
+    // branches instead of producing a value.
+    private static class Translator implements Expr.Visitor<Void>, Stmt.Visitor<Boolean> {
+        private final ClassFile classFile;
+        private final String className;
+        private final Stmt.Function function;
+        private final ClassFile.Code code = new ClassFile.Code();
+
+        boolean callsItself = false;
+
+        Translator(ClassFile classFile, String className, Stmt.Function function) {
+            this.classFile = classFile;
+            this.className = className;
+            this.function = function;
+        }
+
+        void translate() {
+            // Falling off the end returns nil, which is not a number.
+            if (translate(function.body)) throw new Unsupported();
+
+            code.maxLocals = 2 * function.size;
+            classFile.addMethod(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "run",
+                    runDescriptor(function.parameters.size()), code);
+        }
+
+        // Statements return whether control can reach the statement after them.
+        // Code after one that cannot is never reached, so it is not translated.
+        private boolean translate(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                if (!statement.accept(this)) return false;
+            }
+            return true;
+        }
+
+        // A variable no closure captures is a plain slot of the frame, and its
+        // slot picks the JVM local. A captured one is in a Cell.
+        private int local(Access access, int slot) {
+            if (access != Access.LOCAL) throw new Unsupported();
+            return local(slot);
+        }
+
+        private int local(int slot) {
+            // dload and dstore only take a one byte index.
+            if (slot < 0 || 2 * slot > 254) throw new Unsupported();
+            return 2 * slot;
+        }
+
+        private void number(Expr expr) {
+            expr.accept(this);
+        }
+
+        // Writes a branch to each of the returned jumps, taken when the condition's
+        // truthiness is jumpWhen. Otherwise execution falls through.
+        private void branch(Expr condition, boolean jumpWhen, List<Integer> jumps) {
+            if (condition instanceof Expr.Grouping) {
+                branch(((Expr.Grouping) condition).expression, jumpWhen, jumps);
+            } else if (condition instanceof Expr.Unary
+                    && ((Expr.Unary) condition).operator.type == TokenType.BANG) {
+                branch(((Expr.Unary) condition).right, !jumpWhen, jumps);
+            } else if (condition instanceof Expr.Literal
+                    && ((Expr.Literal) condition).value instanceof Boolean) {
+                if ((Boolean) ((Expr.Literal) condition).value == jumpWhen) {
+                    jumps.add(code.jump(GOTO, 0));
+                }
+            } else if (condition instanceof Expr.Binary) {
+                compare((Expr.Binary) condition, jumpWhen, jumps);
+            } else {
+                throw new Unsupported();
+            }
+        }
+
+        // dcmpg puts NaN above everything and dcmpl below, so picking the right
+        // one makes every ordered comparison with NaN false. Equality goes through
+        // Double.compare to agree with Double.equals on NaN and signed zeroes.
+        private void compare(Expr.Binary expr, boolean jumpWhen, List<Integer> jumps) {
+            number(expr.left);
+            number(expr.right);
+
+            int jump;
+            switch (expr.operator.type) {
+                case LESS:
+                    code.op(DCMPG, -3);
+                    jump = jumpWhen ? IFLT : IFGE;
+                    break;
+                case LESS_EQUAL:
+                    code.op(DCMPG, -3);
+                    jump = jumpWhen ? IFLE : IFGT;
+                    break;
+                case GREATER:
+                    code.op(DCMPL, -3);
+                    jump = jumpWhen ? IFGT : IFLE;
+                    break;
+                case GREATER_EQUAL:
+                    code.op(DCMPL, -3);
+                    jump = jumpWhen ? IFGE : IFLT;
+                    break;
+                case EQUAL_EQUAL:
+                    code.opWide(INVOKESTATIC, classFile.methodRef(DOUBLE, "compare", "(DD)I"), -3);
+                    jump = jumpWhen ? IFEQ : IFNE;
+                    break;
+                case BANG_EQUAL:
+                    code.opWide(INVOKESTATIC, classFile.methodRef(DOUBLE, "compare", "(DD)I"), -3);
+                    jump = jumpWhen ? IFNE : IFEQ;
+                    break;
+                default:
+                    throw new Unsupported();
+            }
+            jumps.add(code.jump(jump, -1));
+        }
+
+        private void patchJumps(List<Integer> jumps) {
+            for (int jump : jumps) {
+                code.patchJump(jump);
+            }
+        }
+
+        @Override
+        public Boolean visitBlockStmt(Stmt.Block stmt) {
+            if (stmt.size >= 0) throw new Unsupported();
+            return translate(stmt.statements);
+        }
+
+        @Override
+        public Boolean visitClassStmt(Stmt.Class stmt) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Boolean visitExpressionStmt(Stmt.Expression stmt) {
+            number(stmt.expression);
+            code.op(POP2, -2);
+            return true;
+        }
+
+        @Override
+        public Boolean visitForStmt(Stmt.For stmt) {
+            if (stmt.size >= 0) throw new Unsupported();
+            if (stmt.initializer != null) stmt.initializer.accept(this);
+
+            int loopStart = code.length();
+            List<Integer> exitJumps = new ArrayList<>();
+            if (stmt.condition != null) branch(stmt.condition, false, exitJumps);
+            if (stmt.body.accept(this)) {
+                if (stmt.increment != null) {
+                    number(stmt.increment);
+                    code.op(POP2, -2);
+                }
+                code.jumpBack(GOTO, loopStart, 0);
+            }
+            patchJumps(exitJumps);
+            return true;
+        }
+
+        @Override
+        public Boolean visitFunctionStmt(Stmt.Function stmt) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Boolean visitIfStmt(Stmt.If stmt) {
+            List<Integer> elseJumps = new ArrayList<>();
+            branch(stmt.condition, false, elseJumps);
+
+            boolean thenCompletes = stmt.thenBranch.accept(this);
+            if (stmt.elseBranch == null) {
+                patchJumps(elseJumps);
+                return true;
+            }
+
+            int endJump = thenCompletes ? code.jump(GOTO, 0) : -1;
+            patchJumps(elseJumps);
+            boolean elseCompletes = stmt.elseBranch.accept(this);
+            if (endJump != -1) code.patchJump(endJump);
+            return thenCompletes || elseCompletes;
+        }
+
+        @Override
+        public Boolean visitPrintStmt(Stmt.Print stmt) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Boolean visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value == null) throw new Unsupported();
+            if (stmt.tailCall) {
+                // A self-call in tail position stores the new arguments over the
+                // parameters and jumps back to the start, so it takes no stack.
+                Expr.Call call = (Expr.Call) stmt.value;
+                selfCall(call);
+                for (Expr argument : call.arguments) {
+                    number(argument);
+                }
+                for (int i = call.arguments.size() - 1; i >= 0; i--) {
+                    code.op(DSTORE, local(i), -2);
+                }
+                code.jumpBack(GOTO, 0, 0);
+                return false;
+            }
+            number(stmt.value);
+            code.op(DRETURN, -2);
+            return false;
+        }
+
+        @Override
+        public Boolean visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer == null || stmt.captured) throw new Unsupported();
+            number(stmt.initializer);
+            code.op(DSTORE, local(stmt.slot), -2);
+            return true;
+        }
+
+        @Override
+        public Boolean visitWhileStmt(Stmt.While stmt) {
+            int loopStart = code.length();
+            List<Integer> exitJumps = new ArrayList<>();
+            branch(stmt.condition, false, exitJumps);
+            if (stmt.body.accept(this)) {
+                code.jumpBack(GOTO, loopStart, 0);
+            }
+            patchJumps(exitJumps);
+            return true;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            int local = local(expr.access, expr.slot);
+            number(expr.value);
+            code.op(DUP2, 2);
+            code.op(DSTORE, local, -2);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            number(expr.left);
+            number(expr.right);
+            switch (expr.operator.type) {
+                case PLUS: code.op(DADD, -2); break;
+                case MINUS: code.op(DSUB, -2); break;
+                case STAR: code.op(DMUL, -2); break;
+                case SLASH: code.op(DDIV, -2); break;
+                default: throw new Unsupported();
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            selfCall(expr);
+            for (Expr argument : expr.arguments) {
+                number(argument);
+            }
+            int arity = function.parameters.size();
+            code.opWide(INVOKESTATIC, classFile.methodRef(className, "run", runDescriptor(arity)), 2 - 2 * arity);
+            return null;
+        }
+
+        // Only calls of the function itself, through its global, can be translated.
+        private void selfCall(Expr.Call expr) {
+            if (!(expr.callee instanceof Expr.Variable)) throw new Unsupported();
+            Expr.Variable callee = (Expr.Variable) expr.callee;
+            if (callee.access != Access.GLOBAL || !callee.name.lexeme.equals(function.name.lexeme)
+                    || expr.arguments.size() != function.parameters.size()) {
+                throw new Unsupported();
+            }
+            callsItself = true;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            number(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            if (!(expr.value instanceof Double)) throw new Unsupported();
+            double value = (Double) expr.value;
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                code.op(DCONST_0, 2);
+            } else if (value == 1.0) {
+                code.op(DCONST_1, 2);
+            } else {
+                code.opWide(LDC2_W, classFile.doubleConstant(value), 2);
+            }
+            return null;
+        }
+
+        // The interpreter's and/or are left to it, so both tiers agree on them.
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            throw new Unsupported();
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            if (expr.operator.type != TokenType.MINUS) throw new Unsupported();
+            number(expr.right);
+            code.op(DNEG, 0);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            code.op(DLOAD, local(expr.access, expr.slot), 2);
+            return null;
+        }
+    }
+
+    // The JVM opcodes the Jit writes.
+    private static final int ICONST_0 = 0x03;
+    private static final int DCONST_0 = 0x0e;
+    private static final int DCONST_1 = 0x0f;
+    private static final int BIPUSH = 0x10;
+    private static final int LDC2_W = 0x14;
+    private static final int DLOAD = 0x18;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int AALOAD = 0x32;
+    private static final int DSTORE = 0x39;
+    private static final int POP2 = 0x58;
+    private static final int DUP2 = 0x5c;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DDIV = 0x6f;
+    private static final int DNEG = 0x77;
+    private static final int DCMPL = 0x97;
+    private static final int DCMPG = 0x98;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int IFLT = 0x9b;
+    private static final int IFGE = 0x9c;
+    private static final int IFGT = 0x9d;
+    private static final int IFLE = 0x9e;
+    private static final int GOTO = 0xa7;
+    private static final int DRETURN = 0xaf;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int CHECKCAST = 0xc0;
+
+}
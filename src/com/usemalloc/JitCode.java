@@ -0,0 +1,9 @@
+package com.usemalloc;
+
+// The entry point of a Lox function that the Jit compiled to a JVM class. The
+// generated class is defined by its own class loader, which puts it in a
+// different runtime package, so this interface has to be public.
+
+public interface JitCode {
+    Object call(Object[] arguments);
+}
@@ -6,8 +6,9 @@ package com.usemalloc;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
@@ -20,19 +21,41 @@ public class Lox {
 
     private static final Interpreter interpreter = new Interpreter();
 
+    // Set by --vm: compile to bytecode and run it on the VM instead of walking the tree.
+    private static VM vm = null;
+
+    // Set by --compile: compile the tree into closures and run those.
+    private static ClosureCompiler closureCompiler = null;
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox[script]");
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        int first = 0;
+        if (args.length > 0 && args[0].equals("--vm")) {
+            vm = new VM();
+            first = 1;
+        } else if (args.length > 0 && args[0].equals("--compile")) {
+            closureCompiler = new ClosureCompiler(interpreter);
+            first = 1;
+        }
+
+        if (args.length - first > 1) {
+            System.out.println("Usage: jlox [--vm | --compile] [script]");
+        } else if (args.length - first == 1) {
+            runFile(args[first]);
         } else {
             runPrompt();
         }
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes,Charset.defaultCharset()));
+        Path file = Paths.get(path);
+        Charset charset = Charset.defaultCharset();
+        if (ParallelScanner.canScan(file,charset)) {
+            // A large file is split and scanned on several cores.
+            run(new ParallelScanner(file,charset).tokens());
+        } else {
+            // The file is mapped and decoded as the Scanner reads it, not read into a String first.
+            run(new Scanner(new MappedReader(file,charset)).tokens());
+        }
 
         //Indicate an error in the exit code.
         if (hadError) System.exit(65);
@@ -46,31 +69,43 @@ public class Lox {
 
         for (;;) {
             System.out.print("> ");
-            run(reader.readLine());
+            run(new Scanner(new StringReader(reader.readLine())).tokens());
             hadError = false;
         }
 
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-
+    private static void run(TokenBuffer tokens) {
+        // The Parser pulls tokens from the Scanner, the two run together.
         Parser parser = new Parser(tokens);
 
+        List<Stmt> statements = parser.parse();
 
         // Stop if there was a syntax error.
 
         if (hadError) return;
 
-        List<Stmt> statements = parser.parse();
-
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
 
         // Stop if there was a resolution error.
         if (hadError) return;
 
+        if (vm != null) {
+            Obj.Function script = new Compiler(vm.globals).compile(statements);
+
+            // Stop if the program does not fit the bytecode limits.
+            if (hadError) return;
+
+            vm.interpret(script);
+            return;
+        }
+
+        if (closureCompiler != null) {
+            closureCompiler.interpret(statements);
+            return;
+        }
+
         interpreter.interpret(statements);
 
 //      System.out.println(new ASTPrinter().print(expression));
@@ -90,6 +125,15 @@ public class Lox {
         report(line, "",message);
     }
 
+    // It reports an error at a given token. It also shows the location and token itself.
+    static void error(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            report(token.line, " at end", message);
+        } else {
+            report(token.line, " at '" + token.lexeme + "'", message);
+        }
+    }
+
     static private void report(int line, String where, String message) {
         System.err.println("[line" + line + "] error" + where + ": "+ message);
         hadError = true;
@@ -99,7 +143,7 @@ public class Lox {
     // of code was executing when the error occured.
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line "+ error.token.line + "]");
+        System.err.println(error.getMessage() + "\n[line "+ error.line + "]");
         hadRuntimeError = true;
     }
 
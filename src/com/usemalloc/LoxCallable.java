@@ -1,5 +1,7 @@
 package com.usemalloc;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -8,4 +10,29 @@ import java.util.List;
 interface LoxCallable {
     int arity();
     Object call(Interpreter interpreter, List<Object> arguments);
+
+    // Entry points for calls with up to four arguments, which the call site
+    // passes directly instead of collecting them in a list. The arity has
+    // already been checked by the call site. Callables that can take their
+    // arguments straight away override these; the rest fall back to call.
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, Collections.singletonList(a));
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, Arrays.asList(a, b));
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, Arrays.asList(a, b, c));
+    }
+
+    default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        return call(interpreter, Arrays.asList(a, b, c, d));
+    }
 }
@@ -1,5 +1,6 @@
 package com.usemalloc;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -10,24 +11,36 @@ public class LoxClass implements LoxCallable {
     final LoxClass superclass;
 
     private final Map<String,LoxFunction> methods;
+    private final LoxFunction initializer;
 
+    // The shape every new instance starts out with, see Shape.
+    final Shape shape = new Shape();
+
+    // The method table is flattened when the class is created: it starts as a
+    // copy of the superclass's table, which already holds everything inherited,
+    // and the class's own methods override entries in it.
     LoxClass(String name,LoxClass superclass,Map<String,LoxFunction> methods) {
         this.name = name;
         this.superclass = superclass;
-        this.methods = methods;
+        this.methods = new HashMap<>();
+        if (superclass != null) {
+            this.methods.putAll(superclass.methods);
+        }
+        this.methods.putAll(methods);
+        this.initializer = this.methods.get("init");
     }
 
     LoxFunction findMethod(LoxInstance instance, String name) {
-        LoxClass klass = this;
-        while (klass != null) {
-            if (klass.methods.containsKey(name)) {
-                return klass.methods.get(name).bind(instance);
-            }
-            klass = klass.superclass;
-        }
+        LoxFunction method = lookupMethod(name);
+        if (method != null) return method.bind(instance);
         return null;
     }
 
+    // The method before it is bound to an instance, so it can be cached.
+    LoxFunction lookupMethod(String name) {
+        return methods.get(name);
+    }
+
 
     @Override
     public String toString() {
@@ -36,18 +49,65 @@ public class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = methods.get("init");
-        if (initializer != null) return 0;
+        if (initializer == null) return 0;
         return initializer.arity();
     }
 
+    // Calling a class creates the instance and runs the initializer, if there
+    // is one, with the instance as its receiver. An initializer returns its
+    // receiver, so what it returns is the new instance. Call sites check the
+    // arity first, so a class called with arguments always has one.
+    private Environment newFrame() {
+        return initializer.newFrame(new LoxInstance(this));
+    }
+
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = methods.get("init");
-        if (initializer != null) {
-            initializer.bind(instance).call(interpreter,arguments);
+        if (initializer == null) return new LoxInstance(this);
+        Environment frame = newFrame();
+        for (Object argument : arguments) {
+            frame.define(argument);
         }
-        return instance;
+        return initializer.invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        if (initializer == null) return new LoxInstance(this);
+        return initializer.invoke(interpreter, newFrame());
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Environment frame = newFrame();
+        frame.define(a);
+        return initializer.invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Environment frame = newFrame();
+        frame.define(a);
+        frame.define(b);
+        return initializer.invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Environment frame = newFrame();
+        frame.define(a);
+        frame.define(b);
+        frame.define(c);
+        return initializer.invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        Environment frame = newFrame();
+        frame.define(a);
+        frame.define(b);
+        frame.define(c);
+        frame.define(d);
+        return initializer.invoke(interpreter, frame);
     }
 }
@@ -6,41 +6,149 @@ import java.util.List;
  * Created by ujjawalpathak on 05/08/17.
  */
 public class LoxFunction  implements LoxCallable{
-    private final Stmt.Function declaration;
-    private final Environment closure;
-    private boolean isInitializer;
+    final Stmt.Function declaration;
+    // The variables the function captured, in the order its declaration lists them.
+    final Cell[] upvalues;
+    // An init method returns its receiver, also when it is called again on an
+    // instance that already exists.
+    final boolean isInitializer;
+    // A method's frame holds "this" in slot 0, ahead of the parameters.
+    final boolean isMethod;
+    // The instance bind() tied the method to, null when it is not bound.
+    final LoxInstance receiver;
+    // Calls so far, until the function is hot enough to hand to the Jit.
+    private int calls = 0;
+    private Jit jit;
+
+    LoxFunction(Stmt.Function declaration,Cell[] upvalues) {
+        this(declaration, upvalues, false, false, null);
+    }
 
-    LoxFunction(Stmt.Function declaration,Environment closure) {
-        this.closure = closure;
-        this.declaration = declaration;
+    // A method of a class.
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isInitializer) {
+        this(declaration, upvalues, true, isInitializer, null);
     }
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isMethod, boolean isInitializer,
+                LoxInstance receiver) {
         this.declaration = declaration;
-        this.closure = closure;
+        this.upvalues = upvalues;
+        this.isMethod = isMethod;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
     LoxFunction bind(LoxInstance self) {
-        Environment environment = new Environment(closure);
-        environment.define("this", self);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, upvalues, true, isInitializer, self);
     }
 
-    @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.parameters.size(); i++) {
-            environment.define(declaration.parameters.get(i).lexeme,arguments.get(i));
+    // Collects the variables a declaration captures, from the frame it is
+    // declared in and that frame's own upvalues.
+    static Cell[] capture(Stmt.Function declaration, Environment environment) {
+        int[] sources = declaration.upvalues;
+        if (sources.length == 0) return Environment.NO_UPVALUES;
+
+        Cell[] upvalues = new Cell[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            int source = sources[i];
+            upvalues[i] = source >= 0 ? environment.cell(source) : environment.upvalues[~source];
+        }
+        return upvalues;
+    }
+
+    // A frame for a call, holding the receiver in slot 0 if this is a method.
+    // Call sites evaluate the arguments straight into it and then call invoke.
+    Environment newFrame(LoxInstance receiver) {
+        Environment environment = new Environment(upvalues,declaration.size);
+        if (isMethod) environment.define(receiver);
+        return environment;
+    }
 
+    // Calls the function with a frame from newFrame that holds the arguments.
+    // A body that ends in a tail call returns the call pending instead of
+    // making it, and the loop makes it here, in place of this one.
+    Object invoke(Interpreter interpreter, Environment frame) {
+        PendingCall pending = interpreter.pendingCall;
+        LoxFunction function = this;
+        while (true) {
+            Object result = function.run(interpreter, frame);
+            if (result != pending) return result;
+            function = pending.function;
+            frame = pending.frame;
         }
-        try {
-            interpreter.executeBlock(declaration.body,environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
+    }
+
+    private Object run(Interpreter interpreter, Environment frame) {
+        Object self = isInitializer ? frame.get(0) : null;
+        for (int slot : declaration.cellParameters) {
+            frame.box(slot);
+        }
+        if (!isMethod) {
+            if (calls < Jit.THRESHOLD && ++calls == Jit.THRESHOLD) {
+                jit = Jit.compile(this, interpreter.globals);
+            }
+            if (jit != null) {
+                Object result = jit.call(this, frame);
+                if (result != null) return result;
+            }
+        }
+        Object result = execute(interpreter, frame);
+        return isInitializer ? self : result;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        Environment frame = newFrame(receiver);
+        for (int i = 0; i < arguments.size(); i++) {
+            frame.define(arguments.get(i));
         }
+        return invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke(interpreter, newFrame(receiver));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Environment frame = newFrame(receiver);
+        frame.define(a);
+        return invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Environment frame = newFrame(receiver);
+        frame.define(a);
+        frame.define(b);
+        return invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Environment frame = newFrame(receiver);
+        frame.define(a);
+        frame.define(b);
+        frame.define(c);
+        return invoke(interpreter, frame);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        Environment frame = newFrame(receiver);
+        frame.define(a);
+        frame.define(b);
+        frame.define(c);
+        frame.define(d);
+        return invoke(interpreter, frame);
+    }
 
-        return null;
+    // Runs the body in a frame that already holds the arguments.
+    Object execute(Interpreter interpreter, Environment environment) {
+        Object result = interpreter.executeBlock(declaration.body,environment);
+        if (result == Interpreter.NORMAL) return null;
+        return result;
     }
 
     @Override
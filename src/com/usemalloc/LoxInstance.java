@@ -1,27 +1,95 @@
 package com.usemalloc;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
+    private static final Object[] NO_FIELDS = new Object[0];
+
     private LoxClass klass;
-    final Map<String, Object> fields = new HashMap<>();
+    // The field values, laid out as the shape says.
+    private Shape shape;
+    private Object[] values = NO_FIELDS;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.shape;
+    }
+
+    // The cache belongs to the property access being evaluated, see InlineCache.
+    Object getProperty(Token name, InlineCache cache) {
+        int entry = cache.find(shape);
+        if (entry >= 0) {
+            int index = cache.index(entry);
+            if (index >= 0) return values[index];
+            return ((LoxFunction) cache.target(entry)).bind(this);
+        }
+
+        int index = shape.indexOf(name.lexeme);
+        if (index >= 0) {
+            cache.add(shape, index, null);
+            return values[index];
+        }
+
+        LoxFunction method = klass.lookupMethod(name.lexeme);
+        if (method != null ) {
+            cache.add(shape, -1, method);
+            return method.bind(this);
+        }
+
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
-    Object getProperty(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    // Returns the unbound method the property names, or null when it names a
+    // field, which takes precedence. Used for obj.method() calls, which pass
+    // the instance to the method instead of binding it.
+    LoxFunction getMethod(Token name, InlineCache cache) {
+        int entry = cache.find(shape);
+        if (entry >= 0) {
+            if (cache.index(entry) >= 0) return null;
+            return (LoxFunction) cache.target(entry);
         }
 
-        LoxFunction method = klass.findMethod(this,name.lexeme);
-        if (method != null ) return method;
+        if (shape.indexOf(name.lexeme) >= 0) return null;
+
+        LoxFunction method = klass.lookupMethod(name.lexeme);
+        if (method != null) {
+            cache.add(shape, -1, method);
+            return method;
+        }
 
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
+    void set(String name, Object value, InlineCache cache) {
+        int entry = cache.find(shape);
+        if (entry >= 0) {
+            int index = cache.index(entry);
+            Shape next = (Shape) cache.target(entry);
+            if (next != null) addField(next);
+            values[index] = value;
+            return;
+        }
+
+        Shape before = shape;
+        int index = shape.indexOf(name);
+        if (index >= 0) {
+            cache.add(before, index, null);
+        } else {
+            addField(shape.withField(name));
+            index = shape.size - 1;
+            cache.add(before, index, shape);
+        }
+        values[index] = value;
+    }
+
+    // Moves the instance to a shape with one more field, making room for its value.
+    private void addField(Shape next) {
+        shape = next;
+        if (shape.size > values.length) {
+            values = Arrays.copyOf(values, Math.max(4, values.length * 2));
+        }
+    }
+
     @Override
     public String toString() {
         return klass.name + "instance";
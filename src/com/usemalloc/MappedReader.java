@@ -0,0 +1,59 @@
+package com.usemalloc;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A script file, memory-mapped and decoded as it is read. The bytes are left
+// to the operating system's page cache and only the chunk the Scanner asks
+// for is decoded, so the file is never in memory twice, as bytes and as a
+// String. Bad input is replaced, as new String(bytes, charset) would.
+
+final class MappedReader extends Reader {
+
+    private final ByteBuffer bytes;
+    private final CharsetDecoder decoder;
+    private boolean done = false;
+
+    MappedReader(Path path, Charset charset) throws IOException {
+        this(map(path), charset);
+    }
+
+    // Reads part of a mapping, see ParallelScanner.
+    MappedReader(ByteBuffer bytes, Charset charset) {
+        this.bytes = bytes;
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+        if (done) return -1;
+
+        CharBuffer out = CharBuffer.wrap(buffer, offset, length);
+        decoder.decode(bytes, out, true);
+        if (!bytes.hasRemaining() && decoder.flush(out).isUnderflow()) done = true;
+
+        int read = out.position() - offset;
+        return read == 0 && done ? -1 : read;
+    }
+
+    // The mapping goes away with the buffer, when it is collected.
+    @Override
+    public void close() {
+    }
+}
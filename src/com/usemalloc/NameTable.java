@@ -0,0 +1,68 @@
+package com.usemalloc;
+
+// Interns identifiers straight from the Scanner's characters. Looking up a
+// name seen before hashes and compares the characters in place, so it
+// allocates nothing. A new name is made into a String once and interned with
+// String.intern, so it is the same object every other part of the
+// interpreter uses for that name.
+//
+// Open addressing with linear probing. The hash is String.hashCode's, kept
+// next to each name so most mismatches are told apart without a compare.
+
+final class NameTable {
+
+    private String[] names = new String[256];
+    private int[] hashes = new int[256];
+    private int count = 0;
+
+    String intern(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[offset + i];
+        }
+
+        int mask = names.length - 1;
+        int index = spread(hash) & mask;
+        while (names[index] != null) {
+            if (hashes[index] == hash && matches(names[index], chars, offset, length)) {
+                return names[index];
+            }
+            index = (index + 1) & mask;
+        }
+
+        String name = new String(chars, offset, length).intern();
+        names[index] = name;
+        hashes[index] = hash;
+        if (++count * 2 > names.length) grow();
+        return name;
+    }
+
+    private static boolean matches(String name, char[] chars, int offset, int length) {
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != chars[offset + i]) return false;
+        }
+        return true;
+    }
+
+    // String.hashCode is weak in its low bits, which pick the bucket.
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private void grow() {
+        String[] oldNames = names;
+        int[] oldHashes = hashes;
+        names = new String[oldNames.length * 2];
+        hashes = new int[oldNames.length * 2];
+
+        int mask = names.length - 1;
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] == null) continue;
+            int index = spread(oldHashes[i]) & mask;
+            while (names[index] != null) index = (index + 1) & mask;
+            names[index] = oldNames[i];
+            hashes[index] = oldHashes[i];
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.usemalloc;
+
+// Unary minus compiled by ClosureCompiler, which can hand its result to the
+// parent unboxed.
+
+final class NegateNode implements ExprNode {
+
+    private final ExprNode right;
+    private final Token operator;
+
+    NegateNode(Token operator, ExprNode right) {
+        this.operator = operator;
+        this.right = right;
+    }
+
+    @Override
+    public Object execute(Environment environment) {
+        Object value = right.execute(environment);
+        Interpreter.checkNumberOperand(operator, value);
+        return -(double)value;
+    }
+
+    @Override
+    public double executeDouble(Environment environment) throws UnexpectedResultException {
+        try {
+            return -right.executeDouble(environment);
+        } catch (UnexpectedResultException e) {
+            // The operand is not a number, so this reports the error.
+            Interpreter.checkNumberOperand(operator, e.result);
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.usemalloc;
+
+// Deduplicates number literals. Every literal with the same value shares one
+// boxed Double, so a script that repeats the same numbers, like a data table,
+// keeps one object per distinct value instead of one per literal.
+//
+// Open addressing with linear probing, keyed by the bits of the value.
+
+final class NumberTable {
+
+    private long[] keys = new long[256];
+    private Double[] values = new Double[256];
+    private int count = 0;
+
+    Double intern(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        int mask = values.length - 1;
+        int index = hash(bits) & mask;
+        while (values[index] != null) {
+            if (keys[index] == bits) return values[index];
+            index = (index + 1) & mask;
+        }
+
+        Double boxed = value;
+        keys[index] = bits;
+        values[index] = boxed;
+        if (++count * 2 > values.length) grow();
+        return boxed;
+    }
+
+    private static int hash(long bits) {
+        int hash = (int) (bits ^ (bits >>> 32));
+        return hash ^ (hash >>> 16);
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Double[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Double[oldKeys.length * 2];
+
+        int mask = values.length - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null) continue;
+            int index = hash(oldKeys[i]) & mask;
+            while (values[index] != null) index = (index + 1) & mask;
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+        }
+    }
+}
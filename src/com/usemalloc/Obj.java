@@ -0,0 +1,143 @@
+package com.usemalloc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// The heap objects of the bytecode VM. Numbers, strings, booleans and nil are
+// plain Java values, just like in the tree-walking Interpreter, and so are the
+// Ropes that concatenation makes.
+
+abstract class Obj {
+
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    // A compiled function. It is a constant in the chunk of the enclosing function.
+    static class Function extends Obj {
+        final String name;
+        final Chunk chunk = new Chunk();
+        int arity = 0;
+        int upvalueCount = 0;
+
+        Function(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            if (name == null) return "<script>";
+            return "<fn " + name + ">";
+        }
+    }
+
+    // A function together with the variables it captured.
+    static class Closure extends Obj {
+        final Function function;
+        final Upvalue[] upvalues;
+
+        Closure(Function function) {
+            this.function = function;
+            this.upvalues = new Upvalue[function.upvalueCount];
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    // A captured variable. While the variable is still on the stack the upvalue
+    // points at its slot; when the variable goes out of scope the value moves
+    // into the upvalue itself.
+    static class Upvalue extends Obj {
+        int slot;
+        Object closed;
+        boolean isClosed = false;
+
+        // Open upvalues form a list sorted by slot, highest first.
+        Upvalue next;
+
+        Upvalue(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    interface NativeBody {
+        Object call(Object[] args);
+    }
+
+    static class Native extends Obj {
+        final int arity;
+        final NativeBody body;
+
+        Native(int arity, NativeBody body) {
+            this.arity = arity;
+            this.body = body;
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    }
+
+    static class Class extends Obj {
+        final String name;
+        final Map<String,Closure> methods = new HashMap<>();
+        final Shape shape = new Shape();
+
+        Class(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class Instance extends Obj {
+        final Class klass;
+        // The field values, laid out as the shape says.
+        Shape shape;
+        Object[] values = NO_FIELDS;
+
+        Instance(Class klass) {
+            this.klass = klass;
+            this.shape = klass.shape;
+        }
+
+        void set(String name, Object value) {
+            int index = shape.indexOf(name);
+            if (index < 0) {
+                shape = shape.withField(name);
+                index = shape.size - 1;
+                if (index == values.length) {
+                    values = Arrays.copyOf(values, Math.max(4, values.length * 2));
+                }
+            }
+            values[index] = value;
+        }
+
+        @Override
+        public String toString() {
+            return klass.name + "instance";
+        }
+    }
+
+    static class BoundMethod extends Obj {
+        final Object receiver;
+        final Closure method;
+
+        BoundMethod(Object receiver, Closure method) {
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+    }
+
+}
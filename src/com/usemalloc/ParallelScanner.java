@@ -0,0 +1,156 @@
+package com.usemalloc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Scans a large script on several cores. A quick pass over the mapped bytes
+// splits the file into chunks after newlines that are not inside a string
+// literal, counting lines on the way so each chunk's Scanner starts on the
+// right one. The chunks are scanned on the common fork-join pool, and handed
+// to the Parser in order: when it reads past the tokens it has, the next
+// chunk's tokens are copied into its buffer, their offsets moved to where the
+// chunk starts, and the errors the chunk found are reported then, so they
+// come out in the same order as from a single Scanner.
+//
+// The byte pass relies on '\n', '"' and '/' never being part of another
+// character, which holds for UTF-8 and single byte charsets. Other scripts
+// and small ones are scanned by a single streaming Scanner.
+
+final class ParallelScanner implements TokenBuffer.Producer {
+
+    // Files smaller than this are not worth splitting. A chunk is at least a
+    // quarter of it, so lowering it splits small scripts too.
+    private static final long THRESHOLD = Long.getLong("lox.parallelScan", 1 << 20);
+    private static final int MIN_CHUNK = (int) Math.max(1, Math.min(1 << 18, THRESHOLD / 4));
+
+    private final TokenBuffer tokens = new TokenBuffer(this);
+    private final List<ForkJoinTask<Scanner>> pending = new ArrayList<>();
+    // The chunks handed over so far, kept while their lexemes may be needed,
+    // and the offset in the source of each one's first character.
+    private final Scanner[] chunks;
+    private final int[] offsets;
+    private int next = 0;
+    // The offset just past the last chunk handed over.
+    private int end = 0;
+    // The rows of the chunk being handed over, how many of them the Parser
+    // gets, which is all but the EOF row except in the last chunk, and how
+    // many it has got so far.
+    private Scanner chunk = null;
+    private int rows = 0;
+    private int row = 0;
+
+    static boolean canScan(Path path, Charset charset) throws IOException {
+        if (Files.size(path) < THRESHOLD) return false;
+        return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    ParallelScanner(Path path, Charset charset) throws IOException {
+        ByteBuffer bytes = MappedReader.map(path);
+        int size = bytes.limit();
+        int target = Math.max(MIN_CHUNK, size / (ForkJoinPool.getCommonPoolParallelism() * 4));
+
+        // Split after the first safe newline once each chunk has reached the target size.
+        int from = 0;
+        int fromLine = 1;
+        int line = 1;
+        boolean inString = false;
+        boolean inComment = false;
+        for (int i = 0; i < size; i++) {
+            byte b = bytes.get(i);
+            if (b == '\n') {
+                line++;
+                inComment = false;
+                if (!inString && i + 1 - from >= target && i + 1 < size) {
+                    submit(bytes, from, i + 1, fromLine, charset);
+                    from = i + 1;
+                    fromLine = line;
+                }
+            } else if (inComment) {
+                continue;
+            } else if (inString) {
+                if (b == '"') inString = false;
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '/' && i + 1 < size && bytes.get(i + 1) == '/') {
+                inComment = true;
+                i++;
+            }
+        }
+        submit(bytes, from, size, fromLine, charset);
+
+        chunks = new Scanner[pending.size()];
+        offsets = new int[pending.size()];
+    }
+
+    private void submit(ByteBuffer bytes, int from, int to, int line, Charset charset) {
+        ByteBuffer slice = bytes.duplicate();
+        slice.position(from);
+        slice.limit(to);
+        MappedReader reader = new MappedReader(slice.slice(), charset);
+        pending.add(ForkJoinPool.commonPool().submit(() -> {
+            Scanner scanner = new Scanner(reader, line, true);
+            scanner.scanToEnd();
+            return scanner;
+        }));
+    }
+
+    TokenBuffer tokens() {
+        return tokens;
+    }
+
+    // Hands the Parser the next rows, waiting for their chunk to be scanned.
+    // The rows are copied up to the next one a chunk found an error at, so
+    // that error is reported when the Parser gets there, as it would be by
+    // a single Scanner.
+    @Override
+    public void scanMore() {
+        int count = tokens.end();
+        while (tokens.end() == count) {
+            if (row == rows) nextChunk();
+
+            chunk.reportErrors(row);
+            int to = Math.min(rows, chunk.nextErrorRow());
+            tokens.append(chunk.tokens(), row, to, offsets[next - 1]);
+            row = to;
+        }
+    }
+
+    private void nextChunk() {
+        if (next == pending.size()) throw new IllegalStateException("Read past the end of the tokens.");
+        // Errors past the last row handed over, found after a chunk's last token.
+        if (chunk != null) chunk.reportErrors(Integer.MAX_VALUE);
+
+        chunk = pending.get(next).join();
+        pending.set(next, null);
+        chunks[next] = chunk;
+        offsets[next] = end;
+        // The chunk's EOF row sits just past its last character.
+        TokenBuffer chunkRows = chunk.tokens();
+        end += chunkRows.start(chunkRows.end() - 1);
+        rows = next == pending.size() - 1 ? chunkRows.end() : chunkRows.end() - 1;
+        row = 0;
+
+        // Chunks that end before the oldest token the Parser still needs can go.
+        int oldest = tokens.oldestStart();
+        for (int i = 0; i < next && offsets[i + 1] <= oldest; i++) {
+            chunks[i] = null;
+        }
+        next++;
+    }
+
+    @Override
+    public String text(int from, int to) {
+        int chunk = next - 1;
+        while (offsets[chunk] > from) chunk--;
+        return chunks[chunk].text(from - offsets[chunk], to - offsets[chunk]);
+    }
+}
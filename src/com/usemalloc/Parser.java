@@ -6,17 +6,19 @@ package com.usemalloc;
 
 import java.beans.Expression;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import static com.usemalloc.TokenType.*;
 
 class Parser {
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
+    // Read a row at a time, the Scanner scanning ahead only as far as it is read.
+    // A Token is only made for the ones the tree keeps, by previous(), or an
+    // error is reported at, by peek().
+    private final TokenBuffer tokens;
     private int current = 0;
 
-    Parser(List<Token> tokens) {
+    Parser(TokenBuffer tokens) {
         this.tokens = tokens;
     }
 
@@ -37,6 +39,7 @@ class Parser {
 
     private Stmt declaration() {
         try {
+            if (match(CLASS)) return classDeclaration();
             if (match(FUN)) return function("function");
             if (match(VAR)) return varDeclaration();
             return statement();
@@ -46,12 +49,33 @@ class Parser {
         }
     }
 
+    // A class and its methods, and the superclass it names after '<', if any.
+    private Stmt classDeclaration() {
+        consume(IDENTIFIER,"Expect class name.");
+        Token name = previous();
+
+        Expr.Variable superclass = null;
+        if (match(LESS)) {
+            consume(IDENTIFIER,"Expect superclass name.");
+            superclass = new Expr.Variable(previous());
+        }
+
+        consume(LEFT_BRACE,"Expect '{' before class body.");
+        List<Stmt.Function> methods = new ArrayList<>();
+        while (!check(RIGHT_BRACE) && !isAtEnd()) {
+            methods.add(function("method"));
+        }
+        consume(RIGHT_BRACE,"Expect '}' after class body.");
+        return new Stmt.Class(name,superclass,methods);
+    }
+
     private Expr expression() {
         return assignment();
     }
 
     private Stmt.Function function(String kind) {
-        Token name = consume(IDENTIFIER,"Expect " + kind + "name.");
+        consume(IDENTIFIER,"Expect " + kind + "name.");
+        Token name = previous();
         //Parse Parameters
         consume(LEFT_PAREN,"Expect '(' after" + kind + "name.");
         List<Token> parameters = new ArrayList<>();
@@ -60,7 +84,8 @@ class Parser {
                 if (parameters.size() >= 8) {
                     error(peek(),"Can not have more than 8 parameters.");
                 }
-                parameters.add(consume(IDENTIFIER,"Expect parameter name."));
+                consume(IDENTIFIER,"Expect parameter name.");
+                parameters.add(previous());
             } while (match(COMMA));
         }
         consume(RIGHT_PAREN,"Expect ')' after parameters");
@@ -98,7 +123,8 @@ class Parser {
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(IDENTIFIER,"Expect variable name.");
+        consume(IDENTIFIER,"Expect variable name.");
+        Token name = previous();
 
         Expr initializer = null;
         if (match(EQUAL)) {
@@ -233,32 +259,10 @@ class Parser {
         consume(RIGHT_PAREN,"Expect ')' after for clauses.");
         Stmt body = statement();
 
-        /*The increment, if there is one, executes after the body in each iteration of the loop.
-        We do that by replacing the body with a little block that contains the original body
-        followed by an expression statement that evaluates the increment.
-        */
-
-        if (increment != null) {
-            body = new Stmt.Block(Arrays.asList(body,new Stmt.Expression(increment)));
-        }
-
-        /*Next, we take the condition and the body and build the loop using a primitive
-        while loop. If the condition is omitted, we jam in true to make an infinite loop.
-         */
-
-        if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition,body);
-
-        /*Finally, if there is an initializer, it runs once before the entire loop.
-         We do that by, again, replacing the whole statement with a block that runs
-         the initializer and then executes the loop.
-         */
-
-        if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer,body));
-        }
-
-        return body;
+        // The loop keeps its clauses instead of being desugared into a while
+        // loop inside blocks, so the interpreters can run it without a scope
+        // per iteration for the increment. A missing condition loops forever.
+        return new Stmt.For(initializer, condition, increment, body);
     }
 
     // It checks to see if the current token is any of the given type if yes it consumes it and returns true otherwise
@@ -275,9 +279,13 @@ class Parser {
 
     // To parse parenthesize expression after parsing the expression it looks for the ')'.
     // It checks if the next token is of the expected type. If so it consumes it, otherwise we hit an error.
+    // Callers that keep the token take it with previous().
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
         throw error(peek(),message);
     }
 
@@ -303,9 +311,9 @@ class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
+            if (tokens.type(current - 1) == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -324,29 +332,30 @@ class Parser {
     // It returns true if the current token is of the given type unlike match() it doesn't consumes it but just look at it.
 
     private boolean check(TokenType tokenType) {
-        if (!isAtEnd()) return false;
-        return peek().type == tokenType;
+        if (isAtEnd()) return false;
+        return tokens.type(current) == tokenType;
     }
 
-    // It consumes the current token and returns it.
-    private Token advance() {
+    // It consumes the current token. Nothing looks further back than previous(),
+    // so the buffer can drop the tokens before it.
+    private void advance() {
         if (!isAtEnd()) current++;
-        return previous();
+        tokens.release(current - 1);
     }
 
     // It checks if we've run out of token to parse.
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
     // It returns the current token we've yet to consume.
     private Token peek() {
-        tokens.get(current);
+        return tokens.token(current);
     }
 
     // It returns the most recently consumed token.
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
     private Expr comparison() {
@@ -400,6 +409,9 @@ class Parser {
         while (true) {
             if (match(LEFT_PAREN)) {
                 expr = finishCall(expr);
+            } else if (match(DOT)) {
+                consume(IDENTIFIER,"Expect property name after '.'.");
+                expr = new Expr.Get(expr,previous());
             } else {
                 break;
             }
@@ -417,7 +429,8 @@ class Parser {
                 arguments.add(expression());
             } while (match(COMMA));
         }
-        Token paren = consume(RIGHT_PAREN,"Expect ')' after arguments.");
+        consume(RIGHT_PAREN,"Expect ')' after arguments.");
+        Token paren = previous();
         return new Expr.Call(callee,paren,arguments);
     }
 
@@ -427,7 +440,16 @@ class Parser {
         if (match(NIL))   return new Expr.Literal(null);
 
         if (match(NUMBER,STRING)) {
-            return new Expr.Literal(previous().literal);
+            return new Expr.Literal(tokens.literal(current - 1));
+        }
+
+        if (match(THIS)) return new Expr.This(previous());
+
+        if (match(SUPER)) {
+            Token keyword = previous();
+            consume(DOT,"Expect '.' after 'super'.");
+            consume(IDENTIFIER,"Expect superclass method name.");
+            return new Expr.Super(keyword,previous());
         }
 
         if (match(IDENTIFIER)) {
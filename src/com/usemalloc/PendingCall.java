@@ -0,0 +1,18 @@
+package com.usemalloc;
+
+// A call to a Lox function whose frame is ready but which has not run yet.
+// A return whose value is a call hands one of these back instead of making the
+// call, and LoxFunction.invoke runs it in a loop, so a chain of tail calls
+// takes constant Java stack however long it gets. The Interpreter owns a
+// single instance that is filled in right before it is handed on.
+
+final class PendingCall {
+    LoxFunction function;
+    Environment frame;
+
+    PendingCall set(LoxFunction function, Environment frame) {
+        this.function = function;
+        this.frame = frame;
+        return this;
+    }
+}
@@ -1,96 +1,180 @@
 package com.usemalloc;
 
 
-import sun.jvm.hotspot.debugger.cdbg.FunctionType;
-
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
+// Besides checking the program, the Resolver lays out local variables. Every
+// variable of a function, whatever block declares it, lives in a slot of the
+// function's frame, and blocks that never run at the same time share slots.
+//
+// Closures are flat: a function captures only the variables it uses from
+// enclosing functions, as its upvalues, and never the frames around it. A
+// captured variable lives in a Cell, which its frame and the closures share.
+// Each function lists where its upvalues come from when a closure is made: a
+// slot of the enclosing function's frame or one of that function's own
+// upvalues. Whether a variable is captured is only known once the function
+// that declares it has been resolved, so the slots, and how each use of a
+// variable reads it, are filled in then, when the function's scope ends.
+
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
-    private final Interpreter interpreter;
     // It keeps track to the stack of scopes currently in scope.
     // It is only used for local block scopes.
-    private final Stack<Map<String,Boolean>> scopes = new Stack<>();
-
-    // It stores the resolution information to be used when the variable or assignment expression is later executed.
-    private final Map<Expr,Integer> locals = new HashMap<>();
+    private final Stack<Scope> scopes = new Stack<>();
 
     // It walks the tree and track whether or not the current code is inside a function declaration.
     private FunctionType currentFuction = FunctionType.NONE;
 
+    // Same for classes, so "this" and "super" can be checked.
+    private ClassType currentClass = ClassType.NONE;
+
+
     private enum FunctionType {
         NONE,
-        FUNCTION
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private enum ClassType {
+        NONE,
+        CLASS,
+        SUBCLASS
     }
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    // A local scope. A root scope is one that gets a frame: a function, or a
+    // scope at the top level, which has no function around it. The other
+    // scopes are children of the root they are in and use its frame.
+    private static class Scope {
+        final Scope enclosing;
+        final Scope root;
+        // The statement that creates the scope, told its layout once it is known.
+        final Stmt statement;
+        final Map<String,Local> locals = new HashMap<>();
+        final List<Local> declared = new ArrayList<>();
+        final List<Scope> children = new ArrayList<>();
+        int size;
+
+        // For a function, the variables it captures. Each source is a slot of
+        // the enclosing frame, or ~index of an upvalue of the enclosing function.
+        final Map<Local,Integer> upvalueIndices = new HashMap<>();
+        final List<Integer> upvalues = new ArrayList<>();
+
+        Scope(Scope enclosing, boolean isRoot, Stmt statement) {
+            this.enclosing = enclosing;
+            this.root = isRoot ? this : enclosing.root;
+            this.statement = statement;
+            if (!isRoot) enclosing.children.add(this);
+        }
+    }
+
+    // A declared local, with the nodes of its own function that use it and
+    // the functions right inside that one that capture it, so they can be
+    // told its slot once it is laid out.
+    private static class Local {
+        final Scope scope;
+        // The Var, Function or Class that declares it, or null for a parameter.
+        final Stmt declaration;
+        boolean defined = false;
+        // Used from a function other than the one that declares it.
+        boolean captured = false;
+        int slot;
+        final List<Expr> uses = new ArrayList<>();
+        final List<Scope> capturedBy = new ArrayList<>();
+        final List<Integer> captureIndices = new ArrayList<>();
+
+        Local(Scope scope, Stmt declaration) {
+            this.scope = scope;
+            this.declaration = declaration;
+        }
     }
 
 
     //Resolving Blocks
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
-        resolve(Stmt.statements);
+        beginScope(scopes.isEmpty(), stmt);
+        resolve(stmt.statements);
         endScope();
         return null;
     }
 
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        ClassType enclosingClass = currentClass;
+        currentClass = ClassType.CLASS;
+
+        declare(stmt.name, stmt);
+        define(stmt.name);
+
+        if (stmt.superclass != null) {
+            if (stmt.superclass instanceof Expr.Variable &&
+                    ((Expr.Variable) stmt.superclass).name.lexeme.equals(stmt.name.lexeme)) {
+                Lox.error(stmt.name, "A class can not inherit from itself.");
+            }
+            currentClass = ClassType.SUBCLASS;
+            resolve(stmt.superclass);
+
+            // The superclass gets a scope of its own, where it is bound to
+            // "super". Methods are the only code in the scope, so it is always
+            // captured.
+            beginScope(scopes.isEmpty(), stmt);
+            declareSynthetic("super");
+            scopes.peek().locals.get("super").captured = true;
+        }
+
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType declaration = FunctionType.METHOD;
+            if (method.name.lexeme.equals("init")) {
+                declaration = FunctionType.INITIALIZER;
+            }
+            resolveFunction(method, declaration);
+        }
+
+        if (stmt.superclass != null) endScope();
+
+        currentClass = enclosingClass;
+        return null;
+    }
+
     // Resolving a variable declaration.
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(Stmt.name);
-            if (stmt.initializer != null) {
-                resolve(stmt.initializer);
-            }
-            define(stmt.name);
-            return null;
+        declare(stmt.name, stmt);
+        if (stmt.initializer != null) {
+            resolve(stmt.initializer);
+        }
+        define(stmt.name);
+        return null;
     }
 
     // It check to see if the variable is being accessed inside its own initializer.
-    // If the variable exists in the current scope but its value is false, that means
+    // If the variable exists in the current scope but it is not defined yet, that means
     // we have declared it but not defined it yet. Hence report an error.
     @Override
-    public Object visitVariableExpr(Expr.Variable expr) {
-        if (scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            Lox.error(expr.name,"Can not read local variable in its own initializer.");
-        }
-        resolveLocal(expr,expr.name);
-        return lookUpVariable(expr.name,expr);
-    }
-
-    // It look up the resolved distance in the map. If it doesn't find the distance in the map, it must be global.
-    // In that case it look it up dynamically, directly in the global environment.
-    // That throws an runtime error if the variable isn't defined.
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance,name.lexeme);
-        } else {
-            return globals.get(name);
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (!scopes.isEmpty()) {
+            Local local = scopes.peek().locals.get(expr.name.lexeme);
+            if (local != null && !local.defined) {
+                Lox.error(expr.name, "Can not read local variable in its own initializer.");
+            }
         }
+        resolveLocal(expr, expr.name);
+        return null;
     }
 
     // Resolving assignment Expressions.
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
-        Object value = evaluate(expr.value);
         resolve(expr.value);
         resolveLocal(expr, expr.name);
-
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance,expr.name,value);
-        } else {
-            globals.assign(expr.name,value);
-        }
-        return value;
+        return null;
     }
 
     // Resolving Function Declaration.
@@ -98,13 +182,26 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // This lets a function recursively refer to itself inside its own body.
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
     }
 
+    // The loop has a scope of its own for the initializer's variable, which
+    // the condition and the increment see too.
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope(scopes.isEmpty(), stmt);
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        if (stmt.condition != null) resolve(stmt.condition);
+        if (stmt.increment != null) resolve(stmt.increment);
+        resolve(stmt.body);
+        endScope();
+        return null;
+    }
+
     // Resolving other syntax tree nodes.
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
@@ -134,7 +231,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
 
         if (stmt.value != null) {
+            if (currentFuction == FunctionType.INITIALIZER) {
+                Lox.error(stmt.keyword, "Can not return a value from an initializer.");
+            }
             resolve(stmt.value);
+            // The call is the last thing the function does, so its frame is
+            // no longer needed once the callee's arguments are evaluated.
+            stmt.tailCall = stmt.value instanceof Expr.Call;
         }
         return null;
     }
@@ -163,6 +266,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        resolve(expr.object);
+        return null;
+    }
+
     @Override
     public Void visitGroupingExpr(Expr.Grouping expr) {
         resolve(expr.expression);
@@ -181,6 +290,38 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        resolve(expr.value);
+        resolve(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        if (currentClass == ClassType.NONE) {
+            Lox.error(expr.keyword, "Can not use 'super' outside of a class.");
+        } else if (currentClass != ClassType.SUBCLASS) {
+            Lox.error(expr.keyword, "Can not use 'super' in a class with no superclass.");
+        }
+        resolveLocal(expr, expr.keyword);
+
+        // The method is looked up on the superclass but bound to "this".
+        expr.self = new Expr.This(new Token(TokenType.THIS, "this", null, expr.keyword.line));
+        resolveLocal(expr.self, expr.self.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        if (currentClass == ClassType.NONE) {
+            Lox.error(expr.keyword, "Can not use 'this' outside of a class.");
+            return null;
+        }
+        resolveLocal(expr, expr.keyword);
+        return null;
+    }
+
     @Override
     public Void visitUnaryExpr(Expr.Unary expr) {
         resolve(expr.right);
@@ -188,17 +329,144 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     // It starts at the innermost scope and work outwards, looking in each map for a maching name.
-    // If it find the variable, it tell the interpreter it has been resolved, passing in the number of
-    // scopes between the current innermost scope and the scope where the variable was found,
+    // A variable of the current function is read from its frame; the node is added to
+    // the variable's uses, to be told its slot once it is laid out. A variable of an
+    // enclosing function is captured, and read through the current function's upvalues.
+    // Nodes left as GLOBAL are globals.
     private void resolveLocal(Expr expr, Token name) {
+        if (scopes.isEmpty()) return;
+
+        Scope current = scopes.peek();
         for (int i = scopes.size() -1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr,scopes.size() - 1 - i);
+            Local local = scopes.get(i).locals.get(name.lexeme);
+            if (local != null) {
+                if (local.scope.root == current.root) {
+                    local.uses.add(expr);
+                } else {
+                    local.captured = true;
+                    setAccess(expr, Access.UPVALUE, upvalue(current.root, local));
+                }
                 return;
             }
         }
     }
 
+    // The index of the variable among the upvalues of the function, added if
+    // it is new. The function takes a variable of the function right around
+    // it from that one's frame, and any other from that one's upvalues.
+    private int upvalue(Scope function, Local local) {
+        Integer known = function.upvalueIndices.get(local);
+        if (known != null) return known;
+
+        int index = function.upvalues.size();
+        Scope outer = function.enclosing.root;
+        if (outer == local.scope.root) {
+            // The slot is filled in when the variable is laid out.
+            function.upvalues.add(-1);
+            local.capturedBy.add(function);
+            local.captureIndices.add(index);
+        } else {
+            function.upvalues.add(~upvalue(outer, local));
+        }
+        function.upvalueIndices.put(local, index);
+        return index;
+    }
+
+    private static void setAccess(Expr expr, Access access, int slot) {
+        if (expr instanceof Expr.Variable) {
+            ((Expr.Variable) expr).access = access;
+            ((Expr.Variable) expr).slot = slot;
+        } else if (expr instanceof Expr.Assign) {
+            ((Expr.Assign) expr).access = access;
+            ((Expr.Assign) expr).slot = slot;
+        } else if (expr instanceof Expr.This) {
+            ((Expr.This) expr).access = access;
+            ((Expr.This) expr).slot = slot;
+        } else if (expr instanceof Expr.Super) {
+            ((Expr.Super) expr).access = access;
+            ((Expr.Super) expr).slot = slot;
+        }
+    }
+
+    // Hands out the slots of a root's frame, then tells every declaration and
+    // use of its variables where they are, and the root's statement its layout.
+    private void layOut(Scope root) {
+        root.size = assignSlots(root, 0);
+        patch(root);
+
+        if (root.statement instanceof Stmt.Function) {
+            Stmt.Function function = (Stmt.Function) root.statement;
+            function.size = root.size;
+            function.upvalues = new int[root.upvalues.size()];
+            for (int i = 0; i < function.upvalues.length; i++) {
+                function.upvalues[i] = root.upvalues.get(i);
+            }
+            // Parameters, and "this", are in the frame before the body runs,
+            // so the captured ones are put in cells on entry.
+            List<Integer> cells = new ArrayList<>();
+            for (Local local : root.declared) {
+                if (local.declaration == null && local.captured) cells.add(local.slot);
+            }
+            function.cellParameters = new int[cells.size()];
+            for (int i = 0; i < function.cellParameters.length; i++) {
+                function.cellParameters[i] = cells.get(i);
+            }
+        } else if (root.statement instanceof Stmt.Block) {
+            ((Stmt.Block) root.statement).size = root.size;
+        } else if (root.statement instanceof Stmt.For) {
+            ((Stmt.For) root.statement).size = root.size;
+        } else if (root.statement instanceof Stmt.Class) {
+            ((Stmt.Class) root.statement).size = root.size;
+        }
+    }
+
+    // Gives the scope's variables the slots from base on, followed by those of
+    // its children. Children never run at the same time, so each of them
+    // starts at the same slot. Returns the slot after the last one used.
+    private int assignSlots(Scope scope, int base) {
+        int next = base;
+        for (Local local : scope.declared) {
+            local.slot = next++;
+        }
+        int end = next;
+        for (Scope child : scope.children) {
+            end = Math.max(end, assignSlots(child, next));
+        }
+        return end;
+    }
+
+    private void patch(Scope scope) {
+        for (Local local : scope.declared) {
+            if (local.declaration instanceof Stmt.Var) {
+                ((Stmt.Var) local.declaration).slot = local.slot;
+                ((Stmt.Var) local.declaration).captured = local.captured;
+            } else if (local.declaration instanceof Stmt.Function) {
+                ((Stmt.Function) local.declaration).slot = local.slot;
+                ((Stmt.Function) local.declaration).captured = local.captured;
+            } else if (local.declaration instanceof Stmt.Class) {
+                ((Stmt.Class) local.declaration).slot = local.slot;
+                ((Stmt.Class) local.declaration).captured = local.captured;
+            }
+
+            Access access = local.captured ? Access.CELL : Access.LOCAL;
+            for (Expr use : local.uses) {
+                setAccess(use, access, local.slot);
+            }
+            for (int i = 0; i < local.capturedBy.size(); i++) {
+                Stmt.Function function = (Stmt.Function) local.capturedBy.get(i).statement;
+                function.upvalues[local.captureIndices.get(i)] = local.slot;
+            }
+        }
+
+        // The only variable of a class's own scope is "super".
+        if (scope.statement instanceof Stmt.Class) {
+            ((Stmt.Class) scope.statement).superSlot = scope.declared.get(0).slot;
+        }
+        for (Scope child : scope.children) {
+            patch(child);
+        }
+    }
+
     // The resolve calls.
     // It is similar to evaluate() and execute() methods in Interpreter class.
     // It applies the Visitor pattern to the given syntax tree node.
@@ -226,9 +494,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         FunctionType enclosingFuction = currentFuction;
         currentFuction = type;
 
-        beginScope();
+        beginScope(true, function);
+        // A method's frame holds "this" in slot 0, ahead of the parameters, so
+        // calling a method needs no scope of its own for the receiver.
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            declareSynthetic("this");
+        }
         for (Token param: function.parameters) {
-            declare(param);
+            declare(param, null);
             define(param);
         }
         resolve(function.body);
@@ -237,59 +510,45 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         currentFuction = enclosingFuction;
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr,depth);
-    }
-
     // This adds the variable to the innermost scope so that it shadows any
     // outer one and so that we know the variables exists. It is marked as "not ready yet"
-    // by binding its name to false in the scope the map.
-    private void declare(Token name) {
+    // until define() is called. Its slot is handed out when the scope is laid out.
+    private void declare(Token name, Stmt declaration) {
         if (scopes.isEmpty()) return;
 
-        Map<String, Boolean> scope = scopes.peek();
+        Scope scope = scopes.peek();
 
-        if (scope.containsKey(name.lexeme)) {
+        if (scope.locals.containsKey(name.lexeme)) {
             Lox.error(name,"Variable with this name already declared in this scope");
+            return;
         }
 
-        scope.put(name.lexeme,false);
+        Local local = new Local(scope, declaration);
+        scope.locals.put(name.lexeme, local);
+        scope.declared.add(local);
     }
 
     // Variables value in the scope, marked as fully initialized and available for use.
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme,true);
-    }
-
-    Object getAt(int distance, String name ) {
-        Environment environment = this;
-        for (int i = 0; i<distance; i++) {
-            environment = environment.enclosing;
-        }
-        return environment.values.get(name);
+        scopes.peek().locals.get(name.lexeme).defined = true;
     }
 
-    // It walks a fixed number of environments and then stuffs the new value in that map.
-    void assignAt(int distance,Token name,Object value) {
-        Environment environment = this;
-        for (int i=0; i<distance; i++) {
-            environment = environment.enclosing;
-        }
-        environment.values.put(name.lexeme,value);
+    // Declares a name the interpreter binds itself, like "this" and "super".
+    private void declareSynthetic(String name) {
+        Scope scope = scopes.peek();
+        Local local = new Local(scope, null);
+        local.defined = true;
+        scope.locals.put(name, local);
+        scope.declared.add(local);
     }
 
-
-    private void beginScope() {
-        scopes.push(new HashMap<String,Boolean>());
+    private void beginScope(boolean isRoot, Stmt statement) {
+        scopes.push(new Scope(scopes.isEmpty() ? null : scopes.peek(), isRoot, statement));
     }
 
     private void endScope() {
-        scopes.pop();
+        Scope scope = scopes.pop();
+        if (scope.root == scope) layOut(scope);
     }
-
-
-
-
-
 }
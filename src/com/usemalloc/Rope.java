@@ -0,0 +1,124 @@
+package com.usemalloc;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// A Lox string made by concatenation. Joining two strings with + only makes
+// a node pointing at both, so building a string piece by piece in a loop
+// costs time and memory linear in its length instead of copying everything
+// built so far on every step. The characters are copied once, when the
+// string is printed, compared or otherwise needs them, and the result is
+// kept so the rope is never flattened twice.
+//
+// A Lox string value is either a java.lang.String, for literals and short
+// results, or a Rope. Code that checks for a string tests for CharSequence.
+
+final class Rope implements CharSequence {
+
+    // Strings up to this long are joined right away, a node would not pay off.
+    private static final int SHORT = 64;
+
+    private final int length;
+    // The two halves, until the rope is flattened and they can be let go.
+    private CharSequence left;
+    private CharSequence right;
+    private String flat;
+    private boolean interned;
+
+    private Rope(CharSequence left, CharSequence right, int length) {
+        this.left = left;
+        this.right = right;
+        this.length = length;
+    }
+
+    // The + operator on two strings.
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        if (left.length() == 0) return right;
+        if (right.length() == 0) return left;
+
+        int length = left.length() + right.length();
+        if (length <= SHORT) return left.toString().concat(right.toString());
+        return new Rope(left, right, length);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    // Copies the leaves into one array from the right end backwards. Ropes
+    // built in a loop are as deep as the loop ran long, so the tree is walked
+    // with a stack of its own rather than by recursion.
+    @Override
+    public String toString() {
+        if (flat != null) return flat;
+
+        char[] chars = new char[length];
+        int end = length;
+        Deque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            CharSequence next = pending.pop();
+            if (next instanceof Rope && ((Rope) next).flat == null) {
+                Rope rope = (Rope) next;
+                pending.push(rope.left);
+                pending.push(rope.right);
+            } else {
+                String leaf = next.toString();
+                end -= leaf.length();
+                leaf.getChars(0, leaf.length(), chars, end);
+            }
+        }
+
+        flat = new String(chars);
+        left = null;
+        right = null;
+        return flat;
+    }
+
+    // Equal to any string, flat or not, with the same characters. Literals are
+    // interned by the Scanner, so two equal ones are the same object and
+    // unequal Strings are almost always told apart by their cached hashes. A
+    // rope is interned the first time it is compared, so comparing it again
+    // is an identity check too.
+    static boolean equal(CharSequence a, CharSequence b) {
+        if (a == b) return true;
+        if (a.length() != b.length()) return false;
+
+        String x = interned(a);
+        String y = interned(b);
+        if (x == y) return true;
+        return x.hashCode() == y.hashCode() && x.equals(y);
+    }
+
+    private static String interned(CharSequence string) {
+        if (!(string instanceof Rope)) return (String) string;
+
+        Rope rope = (Rope) string;
+        if (!rope.interned) {
+            rope.flat = rope.toString().intern();
+            rope.interned = true;
+        }
+        return rope.flat;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return (other instanceof Rope || other instanceof String) && equal(this, (CharSequence) other);
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
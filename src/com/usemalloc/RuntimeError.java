@@ -7,10 +7,19 @@ package com.usemalloc;
 public class RuntimeError extends RuntimeException{
 
     final Token token;
+    final int line;
 
     RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
+        this.line = token.line;
+    }
+
+    // For the bytecode VM, which only knows the line of the failing instruction.
+    RuntimeError(int line, String message) {
+        super(message);
+        this.token = null;
+        this.line = line;
     }
 
 }
@@ -4,45 +4,56 @@ package com.usemalloc;
  * Created by ujjawalpathak on 06/07/17.
  */
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import static com.usemalloc.TokenType.*;
 
-class Scanner {
-
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
-    private static final Map<String,TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-    }
+// The Scanner reads its source a chunk at a time and only scans as far as the
+// Parser has asked for, so parsing starts with the first token and a script
+// is never held in memory whole. It keeps a window of characters, from the
+// start of the oldest lexeme the TokenBuffer may still cut out, onwards.
+
+class Scanner implements TokenBuffer.Producer {
+
+    private static final int CHUNK = 8192;
+
+    private final Reader reader;
+    private final TokenBuffer tokens;
+    private char[] chars = new char[CHUNK];
+    // Source offsets of chars[0] and of the end of what has been read so far.
+    private int base = 0;
+    private int limit = 0;
+    private boolean drained = false;
+    private boolean finished = false;
+    // Set for a chunk scanned on another thread, see ParallelScanner. Its
+    // errors are kept, with the row that was being scanned when each was
+    // found, until the Parser reads up to that row.
+    private final List<Integer> errorRows;
+    private final List<Integer> errorLines;
+    private final List<String> errorMessages;
+    private int reported = 0;
+    // Identifiers seen so far, looked up by their characters in the window.
+    private final NameTable names = new NameTable();
+    // Number literals seen so far, so that equal ones share a Double.
+    private final NumberTable numbers = new NumberTable();
+
+    // Literals with up to this many digits are parsed without Double.parseDouble.
+    private static final int MAX_EXACT_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
 
     private int start = 0;
     private int current = 0;
-    private int line = 1;
+    private int line;
 
     /*
-    The 'start' and 'current' fields are offsets in the string- the first
+    The 'start' and 'current' fields are offsets in the source- the first
     character in the current lexeme being scanned and the character we're
     currently considering.
 
@@ -51,17 +62,114 @@ class Scanner {
 
     */
 
-    Scanner(String source) {
-        this.source = source;
+    Scanner(Reader reader) {
+        this(reader, 1, false);
+    }
+
+    // A scanner for a part of a script, which starts on the given line.
+    Scanner(Reader reader, int line, boolean deferErrors) {
+        this.reader = reader;
+        this.line = line;
+        this.tokens = new TokenBuffer(this);
+        this.errorRows = deferErrors ? new ArrayList<>() : null;
+        this.errorLines = deferErrors ? new ArrayList<>() : null;
+        this.errorMessages = deferErrors ? new ArrayList<>() : null;
+    }
+
+    // The tokens of the source, scanned as the Parser reads them.
+    TokenBuffer tokens() {
+        return tokens;
     }
 
-    List<Token> scanTokens() {
-        while (!isAtEnd()) {
+    // Called by the TokenBuffer when the Parser reads past the tokens scanned
+    // so far. Scans until there is at least one more, the EOF token last.
+    @Override
+    public void scanMore() {
+        if (finished) throw new IllegalStateException("Read past the end of the tokens.");
+
+        int count = tokens.end();
+        while (tokens.end() == count) {
+            if (isAtEnd()) {
+                tokens.add(EOF,current,0,line,null);
+                finished = true;
+                return;
+            }
             start = current;
-            scanTokens();
+            scanToken();
+        }
+    }
+
+    // The text of a lexeme, which is always still in the window.
+    @Override
+    public String text(int from, int to) {
+        return new String(chars, from - base, to - from);
+    }
+
+    // Scans all of the source at once, for a chunk scanned ahead of the Parser.
+    void scanToEnd() {
+        while (!finished) scanMore();
+    }
+
+    private void error(int line, String message) {
+        if (errorLines == null) {
+            Lox.error(line, message);
+        } else {
+            errorRows.add(tokens.end());
+            errorLines.add(line);
+            errorMessages.add(message);
+        }
+    }
+
+    // Reports the errors a chunk kept that were found scanning the given row
+    // or one before it. A single Scanner reports an error when the Parser
+    // first reads the row it was scanning, and a chunk's errors come out at
+    // the same point.
+    void reportErrors(int row) {
+        while (reported < errorRows.size() && errorRows.get(reported) <= row) {
+            Lox.error(errorLines.get(reported), errorMessages.get(reported));
+            reported++;
+        }
+    }
+
+    // The row of the first error not reported yet.
+    int nextErrorRow() {
+        return reported < errorRows.size() ? errorRows.get(reported) : Integer.MAX_VALUE;
+    }
+
+    // Reads the next chunk, returning false at the end of the source. The
+    // characters before the oldest lexeme still needed are dropped first.
+    private boolean fill() {
+        if (drained) return false;
+
+        int keep = Math.min(start, tokens.oldestStart());
+        if (keep > base) {
+            System.arraycopy(chars, keep - base, chars, 0, limit - keep);
+            base = keep;
+        }
+        if (chars.length - (limit - base) < CHUNK / 2) {
+            chars = Arrays.copyOf(chars, chars.length * 2);
+        }
+
+        try {
+            int read = reader.read(chars, limit - base, chars.length - (limit - base));
+            if (read < 0) {
+                drained = true;
+                reader.close();
+                return false;
+            }
+            limit += read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        tokens.add(new Token(EOF,"",null,line));
-        return tokens;
+    }
+
+    // Whether the character at the offset is in the window, reading on if needed.
+    private boolean available(int offset) {
+        while (offset >= limit) {
+            if (!fill()) return false;
+        }
+        return true;
     }
 
     private void scanToken() {
@@ -103,7 +211,7 @@ class Scanner {
                 } else if(isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    error(line, "Unexpected character.");
                 }
                 break;
         }
@@ -114,7 +222,7 @@ class Scanner {
 
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (chars[current - base] != expected) return false;
 
         current++;
         return true;
@@ -124,12 +232,12 @@ class Scanner {
 
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return chars[current - base];
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (!available(current + 1)) return '\0';
+        return chars[current + 1 - base];
     }
 
     // The string() method for the string.
@@ -142,7 +250,7 @@ class Scanner {
 
         // Unterminated String.
         if (isAtEnd()) {
-            Lox.error(line,"Unterminated String.");
+            error(line,"Unterminated String.");
             return;
         }
 
@@ -150,9 +258,10 @@ class Scanner {
 
         advance();
 
-        // Trim the surrounding quotes.
+        // Trim the surrounding quotes. Literals are interned, so equal ones are
+        // the same String and comparing them is an identity check.
 
-        String value = source.substring(start + 1,current -1);
+        String value = text(start + 1,current -1).intern();
         addToken(STRING,value);
 
     }
@@ -174,7 +283,29 @@ class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER,Double.parseDouble(source.substring(start,current)));
+        addToken(NUMBER,numbers.intern(parseNumber()));
+    }
+
+    // Turns the lexeme into its value right from the window. With at most 15 digits
+    // the digits make an exact long and the power of ten for the fraction is exact
+    // as a double, and a division of exact doubles is correctly rounded, so this
+    // gives what Double.parseDouble would without making a String. Longer
+    // literals do go through Double.parseDouble.
+    private double parseNumber() {
+        int end = current - base;
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        for (int i = start - base; i < end; i++) {
+            char c = chars[i];
+            if (c == '.') {
+                scale = end - i - 1;
+                continue;
+            }
+            if (++digits > MAX_EXACT_DIGITS) return Double.parseDouble(text(start,current));
+            mantissa = mantissa * 10 + (c - '0');
+        }
+        return scale == 0 ? mantissa : mantissa / POWERS_OF_TEN[scale];
     }
 
     // Identirier method
@@ -184,13 +315,63 @@ class Scanner {
 
         // See if the identifier is a reserved keyword.
 
-        String text = source.substring(start,current);
+        TokenType type = keyword();
+        if (type != IDENTIFIER) {
+            addToken(type);
+            return;
+        }
 
-        TokenType type = keywords.get(text);
+        // The name goes in the literal column, so the lexeme never has to be cut out.
+        addToken(IDENTIFIER,names.intern(chars,start - base,current - start));
+    }
 
-        if (type == null) type = IDENTIFIER;
+    // Recognizes keywords on the characters themselves, without making a String or
+    // hashing: the first letter, and the second where several keywords share one,
+    // leave at most one keyword the rest of the lexeme can be.
+    private TokenType keyword() {
+        int offset = start - base;
+        switch (chars[offset]) {
+            case 'a': return keyword(1,"nd",AND);
+            case 'c': return keyword(1,"lass",CLASS);
+            case 'e': return keyword(1,"lse",ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (chars[offset + 1]) {
+                        case 'a': return keyword(2,"lse",FALSE);
+                        case 'o': return keyword(2,"r",FOR);
+                        case 'u': return keyword(2,"n",FUN);
+                    }
+                }
+                break;
+            case 'i': return keyword(1,"f",IF);
+            case 'n': return keyword(1,"il",NIL);
+            case 'o': return keyword(1,"r",OR);
+            case 'p': return keyword(1,"rint",PRINT);
+            case 'r': return keyword(1,"eturn",RETURN);
+            case 's': return keyword(1,"uper",SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (chars[offset + 1]) {
+                        case 'h': return keyword(2,"is",THIS);
+                        case 'r': return keyword(2,"ue",TRUE);
+                    }
+                }
+                break;
+            case 'v': return keyword(1,"ar",VAR);
+            case 'w': return keyword(1,"hile",WHILE);
+        }
+        return IDENTIFIER;
+    }
 
-        addToken(IDENTIFIER);
+    // The keyword, if the lexeme is exactly its first characters followed by rest.
+    private TokenType keyword(int from, String rest, TokenType type) {
+        if (current - start != from + rest.length()) return IDENTIFIER;
+
+        int offset = start - base + from;
+        for (int i = 0; i < rest.length(); i++) {
+            if (chars[offset + i] != rest.charAt(i)) return IDENTIFIER;
+        }
+        return type;
     }
 
     private boolean isAlpha(char c) {
@@ -207,25 +388,25 @@ class Scanner {
     // Helper function that tells if we've consumed all the characters.
 
     private boolean isAtEnd() {
-        return  current >= source.length();
+        return  !available(current);
     }
 
     // The advance() method consumes the nest character in the source file and returns it.
 
     private char advance() {
         current++;
-        return source.charAt(current - 1);
+        return chars[current - 1 - base];
     }
 
-    // The addToken() method is for output. It grabs the test of the current lexeme and create a new token fot it.
+    // The addToken() method is for output. It records the current lexeme as a new token.
 
     private void addToken(TokenType type) {
         addToken(type,null);
     }
 
+    // The lexeme is left in the source, the buffer only records where it is.
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start,current);
-        tokens.add(new Token(type,text,literal,line));
+        tokens.add(type,start,current - start,line,literal);
     }
 
 }
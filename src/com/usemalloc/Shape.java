@@ -0,0 +1,48 @@
+package com.usemalloc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of an instance's fields, in the style of V8's hidden classes. A
+// shape maps each field name to an index into the instance's value array, and
+// every instance that gained the same fields in the same order shares one
+// shape. Adding a field follows a transition to the next shape, creating it
+// the first time, so the shapes of a class form a tree.
+//
+// Each class owns the root of its tree, which means a shape also tells which
+// class its instances belong to.
+
+final class Shape {
+
+    private final Map<String,Integer> indices;
+    private final Map<String,Shape> transitions = new HashMap<>();
+    final int size;
+
+    Shape() {
+        this.indices = new HashMap<>();
+        this.size = 0;
+    }
+
+    private Shape(Shape parent, String name) {
+        this.indices = new HashMap<>(parent.indices);
+        this.indices.put(name, parent.size);
+        this.size = parent.size + 1;
+    }
+
+    // Returns the field's index, or -1 when instances of this shape don't have it.
+    int indexOf(String name) {
+        Integer index = indices.get(name);
+        return index == null ? -1 : index;
+    }
+
+    // The shape of an instance of this shape after the field is added to it.
+    Shape withField(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+
+}
@@ -10,6 +10,7 @@ abstract class Stmt {
         R visitBlockStmt(Block stmt);
         R visitClassStmt(Class stmt);
         R visitExpressionStmt(Expression stmt);
+        R visitForStmt(For stmt);
         R visitFunctionStmt(Function stmt);
         R visitIfStmt(If stmt);
         R visitPrintStmt(Print stmt);
@@ -28,6 +29,8 @@ abstract class Stmt {
         }
 
         final List<Stmt> statements;
+
+        int size = -1;
     }
 
     static class Class extends Stmt {
@@ -44,6 +47,11 @@ abstract class Stmt {
         final Token name;
         final Expr superclass;
         final List<Stmt.Function> methods;
+
+        int slot = -1;
+        boolean captured = false;
+        int size = -1;
+        int superSlot = -1;
     }
 
     static class Expression extends Stmt {
@@ -58,6 +66,26 @@ abstract class Stmt {
         final Expr expression;
     }
 
+    static class For extends Stmt {
+        For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+            this.initializer = initializer;
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStmt(this);
+        }
+
+        final Stmt initializer;
+        final Expr condition;
+        final Expr increment;
+        final Stmt body;
+
+        int size = -1;
+    }
+
     static class Function extends Stmt {
         Function(Token name, List<Token> parameters, List<Stmt> body) {
             this.name = name;
@@ -72,6 +100,12 @@ abstract class Stmt {
         final Token name;
         final List<Token> parameters;
         final List<Stmt> body;
+
+        int slot = -1;
+        boolean captured = false;
+        int size = 0;
+        int[] upvalues = null;
+        int[] cellParameters = null;
     }
 
     static class If extends Stmt {
@@ -114,6 +148,8 @@ abstract class Stmt {
 
         final Token keyword;
         final Expr value;
+
+        boolean tailCall = false;
     }
 
     static class Var extends Stmt {
@@ -128,6 +164,9 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+
+        int slot = -1;
+        boolean captured = false;
     }
 
     static class While extends Stmt {
@@ -0,0 +1,11 @@
+package com.usemalloc;
+
+// A statement compiled by ClosureCompiler. Executing it returns NORMAL when
+// control falls through to the next statement, or the value of a return
+// statement, so returning from a function needs no exception.
+
+interface StmtNode {
+    Object NORMAL = new Object();
+
+    Object execute(Environment environment);
+}
@@ -0,0 +1,166 @@
+package com.usemalloc;
+
+import java.util.Arrays;
+
+// The tokens of a script, as the Scanner produces them and the Parser reads
+// them. Instead of a Token object and a substring per token, each token is a
+// row across parallel arrays: its type, where its lexeme starts in the source
+// and how long it is, its line and the index of its literal, -1 when it has
+// none. An identifier's literal is its name, already interned by the
+// Scanner. Lexemes are only cut out of the source, and Tokens only made,
+// for the tokens the Parser keeps in the tree or reports an error at.
+//
+// Tokens are numbered from the start of the script, but the buffer only
+// holds the ones the Parser can still look at. Reading past the last one
+// scans more, and the rows before the one the Parser released last are
+// dropped when the arrays fill up, so the buffer stays as small as the
+// Parser's lookahead.
+
+final class TokenBuffer {
+
+    // Where the rows come from: a Scanner, or the chunks of a ParallelScanner.
+    interface Producer {
+        // Adds at least one row, or fails when the EOF row has been added.
+        void scanMore();
+
+        // The source text between two offsets of a row still in the buffer.
+        String text(int from, int to);
+    }
+
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final int CAPACITY = 64;
+
+    private final Producer scanner;
+    private byte[] types = new byte[CAPACITY];
+    private int[] starts = new int[CAPACITY];
+    private int[] lengths = new int[CAPACITY];
+    private int[] lines = new int[CAPACITY];
+    private int[] literalIndices = new int[CAPACITY];
+    private Object[] literals = new Object[16];
+    // The number of the token in row 0, and of the oldest one still needed.
+    private int first = 0;
+    private int released = 0;
+    private int count = 0;
+    private int literalCount = 0;
+
+    TokenBuffer(Producer scanner) {
+        this.scanner = scanner;
+    }
+
+    void add(TokenType type, int start, int length, int line, Object literal) {
+        if (count == types.length) makeRoom();
+
+        types[count] = (byte) type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        if (literal == null) {
+            literalIndices[count] = -1;
+        } else {
+            if (literalCount == literals.length) literals = Arrays.copyOf(literals, literalCount * 2);
+            literals[literalCount] = literal;
+            literalIndices[count] = literalCount++;
+        }
+        count++;
+    }
+
+    // Drops the released rows if that frees at least half of the arrays,
+    // otherwise grows them.
+    private void makeRoom() {
+        int drop = released - first;
+        if (drop < types.length / 2) {
+            int capacity = types.length * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            literalIndices = Arrays.copyOf(literalIndices, capacity);
+            return;
+        }
+
+        int kept = count - drop;
+        System.arraycopy(types, drop, types, 0, kept);
+        System.arraycopy(starts, drop, starts, 0, kept);
+        System.arraycopy(lengths, drop, lengths, 0, kept);
+        System.arraycopy(lines, drop, lines, 0, kept);
+        System.arraycopy(literalIndices, drop, literalIndices, 0, kept);
+        first = released;
+        count = kept;
+
+        // Literal indices only grow, so the kept rows own the tail of the pool.
+        int firstLiteral = literalCount;
+        for (int row = 0; row < count; row++) {
+            if (literalIndices[row] >= 0) {
+                firstLiteral = literalIndices[row];
+                break;
+            }
+        }
+        System.arraycopy(literals, firstLiteral, literals, 0, literalCount - firstLiteral);
+        Arrays.fill(literals, literalCount - firstLiteral, literalCount, null);
+        literalCount -= firstLiteral;
+        for (int row = 0; row < count; row++) {
+            if (literalIndices[row] >= 0) literalIndices[row] -= firstLiteral;
+        }
+    }
+
+    // Copies rows of a chunk's buffer, which has kept all of them, moving
+    // their lexemes by the offset of the chunk in the source.
+    void append(TokenBuffer chunk, int from, int to, int offset) {
+        for (int row = from; row < to; row++) {
+            add(TYPES[chunk.types[row]], chunk.starts[row] + offset, chunk.lengths[row], chunk.lines[row],
+                    chunk.literal(row));
+        }
+    }
+
+    // The Parser will not look at the tokens before this one again.
+    void release(int index) {
+        released = index;
+    }
+
+    // The number of the token after the last one scanned.
+    int end() {
+        return first + count;
+    }
+
+    // Where the lexeme of the oldest token still needed starts in the source.
+    int oldestStart() {
+        int row = released - first;
+        return row < count ? starts[row] : Integer.MAX_VALUE;
+    }
+
+    private int row(int index) {
+        while (index >= first + count) scanner.scanMore();
+        return index - first;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[row(index)]];
+    }
+
+    int start(int index) {
+        return starts[row(index)];
+    }
+
+    int line(int index) {
+        return lines[row(index)];
+    }
+
+    Object literal(int index) {
+        int literal = literalIndices[row(index)];
+        return literal < 0 ? null : literals[literal];
+    }
+
+    // Names are interned like string literals, so the maps of globals, fields
+    // and methods find them by identity.
+    String lexeme(int index) {
+        int row = row(index);
+        if (types[row] == TokenType.IDENTIFIER.ordinal()) return (String) literals[literalIndices[row]];
+        return scanner.text(starts[row], starts[row] + lengths[row]);
+    }
+
+    Token token(int index) {
+        TokenType type = type(index);
+        Object literal = type == TokenType.IDENTIFIER ? null : literal(index);
+        return new Token(type, lexeme(index), literal, line(index));
+    }
+}
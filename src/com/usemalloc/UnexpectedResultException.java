@@ -0,0 +1,21 @@
+package com.usemalloc;
+
+// Thrown by ExprNode.executeDouble when the expression did not produce a
+// number. The value it did produce travels with the exception, so the caller
+// can carry on with it without evaluating the expression again.
+
+class UnexpectedResultException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final transient Object result;
+
+    UnexpectedResultException(Object result) {
+        this.result = result;
+    }
+
+    // It is thrown on every guard miss, so it skips recording a stack trace.
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
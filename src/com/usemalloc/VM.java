@@ -0,0 +1,497 @@
+package com.usemalloc;
+
+import java.util.Arrays;
+
+import static com.usemalloc.OpCode.*;
+
+// A stack-based virtual machine for the bytecode produced by Compiler.
+// A single dispatch loop runs every function: a call pushes a CallFrame and
+// the loop carries on in the callee's chunk, a return pops it again, so Lox
+// calls nest no Java frames. A function's arguments and locals live in the
+// shared value stack starting at its frame's base slot.
+
+class VM {
+
+    // The deepest the Lox call stack may get, unless -Dlox.maxFrames says otherwise.
+    static final int MAX_FRAMES = Integer.getInteger("lox.maxFrames", 1 << 16);
+
+    final Globals globals = new Globals();
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+
+    // The call stack. The frames are kept and reused, and the array grows as
+    // deep as the program goes, up to maxFrames.
+    private final int maxFrames;
+    private CallFrame[] frames;
+    private int frameCount = 0;
+
+    // Upvalues still pointing into the stack, sorted by slot, highest first.
+    private Obj.Upvalue openUpvalues = null;
+
+    VM() {
+        this(MAX_FRAMES);
+    }
+
+    VM(int maxFrames) {
+        if (maxFrames < 1) {
+            throw new IllegalArgumentException("lox.maxFrames must be at least 1, got " + maxFrames + ".");
+        }
+        this.maxFrames = maxFrames;
+        this.frames = new CallFrame[Math.min(64, maxFrames)];
+        defineNative("clock", 0, new Obj.NativeBody() {
+            @Override
+            public Object call(Object[] args) {
+                return (double) System.currentTimeMillis() / 1000.0;
+            }
+        });
+    }
+
+    void interpret(Obj.Function script) {
+        Obj.Closure closure = new Obj.Closure(script);
+        try {
+            push(closure);
+            call(closure, 0, 0);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            Arrays.fill(stack, 0, sp, null);
+            sp = 0;
+            for (int i = 0; i < frameCount; i++) {
+                frames[i].closure = null;
+            }
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    // Runs until the outermost frame returns. The current frame's state is
+    // kept in locals; it is written back to the frame before a call, and a
+    // call or a return continues the outer loop to load the frame that is
+    // current after it. Slot 0 of a frame holds the callee, or the receiver
+    // for methods, and the arguments follow it.
+    private void run() {
+        frames:
+        for (;;) {
+            CallFrame frame = frames[frameCount - 1];
+            Obj.Closure closure = frame.closure;
+            Chunk chunk = closure.function.chunk;
+            byte[] code = chunk.code;
+            Object[] constants = chunk.constants;
+            int base = frame.base;
+            int ip = frame.ip;
+
+            for (;;) {
+                byte instruction = code[ip++];
+                switch (instruction) {
+                    case CONSTANT: {
+                        push(constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                        ip += 2;
+                        break;
+                    }
+                    case NIL: push(null); break;
+                    case TRUE: push(true); break;
+                    case FALSE: push(false); break;
+                    case POP: sp--; break;
+
+                    case GET_LOCAL: push(stack[base + (code[ip++] & 0xff)]); break;
+                    case SET_LOCAL: stack[base + (code[ip++] & 0xff)] = stack[sp - 1]; break;
+
+                    case GET_GLOBAL: {
+                        int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        push(globals.get(slot, chunk.lines[ip - 1]));
+                        break;
+                    }
+                    case DEFINE_GLOBAL: {
+                        int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        globals.define(slot, pop());
+                        break;
+                    }
+                    case SET_GLOBAL: {
+                        int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        globals.assign(slot, chunk.lines[ip - 1], stack[sp - 1]);
+                        break;
+                    }
+
+                    case GET_UPVALUE: {
+                        Obj.Upvalue upvalue = closure.upvalues[code[ip++] & 0xff];
+                        push(upvalue.isClosed ? upvalue.closed : stack[upvalue.slot]);
+                        break;
+                    }
+                    case SET_UPVALUE: {
+                        Obj.Upvalue upvalue = closure.upvalues[code[ip++] & 0xff];
+                        if (upvalue.isClosed) {
+                            upvalue.closed = stack[sp - 1];
+                        } else {
+                            stack[upvalue.slot] = stack[sp - 1];
+                        }
+                        break;
+                    }
+
+                    case GET_PROPERTY: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        Object object = stack[sp - 1];
+                        if (!(object instanceof Obj.Instance)) {
+                            throw new RuntimeError(chunk.lines[ip - 1], "Only instances have properties.");
+                        }
+                        Obj.Instance instance = (Obj.Instance) object;
+                        int index = instance.shape.indexOf(name);
+                        if (index >= 0) {
+                            stack[sp - 1] = instance.values[index];
+                            break;
+                        }
+                        Obj.Closure method = instance.klass.methods.get(name);
+                        if (method == null) {
+                            throw new RuntimeError(chunk.lines[ip - 1], "Undefined property '" + name + "'.");
+                        }
+                        stack[sp - 1] = new Obj.BoundMethod(instance, method);
+                        break;
+                    }
+                    case SET_PROPERTY: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        Object object = pop();
+                        if (!(object instanceof Obj.Instance)) {
+                            throw new RuntimeError(chunk.lines[ip - 1], "Only instances have fields.");
+                        }
+                        ((Obj.Instance) object).set(name, stack[sp - 1]);
+                        break;
+                    }
+                    case GET_SUPER: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        Obj.Class superclass = (Obj.Class) pop();
+                        Obj.Closure method = superclass.methods.get(name);
+                        if (method == null) {
+                            throw new RuntimeError(chunk.lines[ip - 1], "Undefined property" + name + ".");
+                        }
+                        stack[sp - 1] = new Obj.BoundMethod(stack[sp - 1], method);
+                        break;
+                    }
+
+                    case EQUAL: {
+                        Object b = pop();
+                        stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                        break;
+                    }
+                    case NOT_EQUAL: {
+                        Object b = pop();
+                        stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+                        break;
+                    }
+                    case GREATER: {
+                        checkNumberOperands(chunk.lines[ip - 1]);
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] > b;
+                        break;
+                    }
+                    case GREATER_EQUAL: {
+                        checkNumberOperands(chunk.lines[ip - 1]);
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] >= b;
+                        break;
+                    }
+                    case LESS: {
+                        checkNumberOperands(chunk.lines[ip - 1]);
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] < b;
+                        break;
+                    }
+                    case LESS_EQUAL: {
+                        checkNumberOperands(chunk.lines[ip - 1]);
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] <= b;
+                        break;
+                    }
+                    case ADD: {
+                        Object b = pop();
+                        Object a = stack[sp - 1];
+                        if (a instanceof Double && b instanceof Double) {
+                            stack[sp - 1] = (double) a + (double) b;
+                        } else if (a instanceof CharSequence && b instanceof CharSequence) {
+                            stack[sp - 1] = Rope.concat((CharSequence) a, (CharSequence) b);
+                        } else {
+                            throw new RuntimeError(chunk.lines[ip - 1], "Operands must ve two numbers or two strings.");
+                        }
+                        break;
+                    }
+                    case SUBTRACT: {
+                        checkNumberOperands(chunk.lines[ip - 1]);
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] - b;
+                        break;
+                    }
+                    case MULTIPLY: {
+                        checkNumberOperands(chunk.lines[ip - 1]);
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] * b;
+                        break;
+                    }
+                    case DIVIDE: {
+                        checkNumberOperands(chunk.lines[ip - 1]);
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] / b;
+                        break;
+                    }
+                    case NOT: stack[sp - 1] = isFalsey(stack[sp - 1]); break;
+                    case NEGATE: {
+                        if (!(stack[sp - 1] instanceof Double)) {
+                            throw new RuntimeError(chunk.lines[ip - 1], "Operand must be a number.");
+                        }
+                        stack[sp - 1] = -(double) stack[sp - 1];
+                        break;
+                    }
+
+                    case PRINT: System.out.println(Interpreter.stringify(pop())); break;
+
+                    case JUMP: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2 + offset;
+                        break;
+                    }
+                    case JUMP_IF_FALSE: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        if (isFalsey(stack[sp - 1])) ip += offset;
+                        break;
+                    }
+                    case LOOP: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2 - offset;
+                        break;
+                    }
+
+                    case CALL: {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        callValue(stack[sp - argCount - 1], argCount, chunk.lines[ip - 1]);
+                        continue frames;
+                    }
+                    case INVOKE: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        int argCount = code[ip + 2] & 0xff;
+                        ip += 3;
+                        frame.ip = ip;
+                        invoke(name, argCount, chunk.lines[ip - 1]);
+                        continue frames;
+                    }
+                    case SUPER_INVOKE: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        int argCount = code[ip + 2] & 0xff;
+                        ip += 3;
+                        frame.ip = ip;
+                        Obj.Class superclass = (Obj.Class) pop();
+                        invokeFromClass(superclass, name, argCount, chunk.lines[ip - 1]);
+                        continue frames;
+                    }
+                    case CLOSURE: {
+                        Obj.Function function = (Obj.Function) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        Obj.Closure created = new Obj.Closure(function);
+                        for (int i = 0; i < created.upvalues.length; i++) {
+                            boolean isLocal = code[ip++] == 1;
+                            int index = code[ip++] & 0xff;
+                            created.upvalues[i] = isLocal ? captureUpvalue(base + index) : closure.upvalues[index];
+                        }
+                        push(created);
+                        break;
+                    }
+                    case CLOSE_UPVALUE: {
+                        closeUpvalues(sp - 1);
+                        sp--;
+                        break;
+                    }
+                    case RETURN: {
+                        Object result = pop();
+                        closeUpvalues(base);
+                        sp = base;
+                        frame.closure = null;
+                        frameCount--;
+                        if (frameCount == 0) return;
+                        push(result);
+                        continue frames;
+                    }
+
+                    case CLASS: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        push(new Obj.Class(name));
+                        break;
+                    }
+                    case INHERIT: {
+                        Object superclass = stack[sp - 2];
+                        if (!(superclass instanceof Obj.Class)) {
+                            throw new RuntimeError(chunk.lines[ip - 1], "Superclass must be a class.");
+                        }
+                        // Methods are copied down, so lookups never walk the superclass chain.
+                        ((Obj.Class) stack[sp - 1]).methods.putAll(((Obj.Class) superclass).methods);
+                        sp--;
+                        break;
+                    }
+                    case METHOD: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        ((Obj.Class) stack[sp - 2]).methods.put(name, (Obj.Closure) stack[sp - 1]);
+                        sp--;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    // Calls. The callee and its arguments are the top argCount + 1 values of the
+    // stack. A native is called at once and they are replaced by its result;
+    // a closure gets a new frame over them, and the result replaces them once
+    // that frame returns.
+
+    private void callValue(Object callee, int argCount, int line) {
+        int calleeSlot = sp - argCount - 1;
+
+        if (callee instanceof Obj.Closure) {
+            call((Obj.Closure) callee, argCount, line);
+        } else if (callee instanceof Obj.BoundMethod) {
+            Obj.BoundMethod bound = (Obj.BoundMethod) callee;
+            stack[calleeSlot] = bound.receiver;
+            call(bound.method, argCount, line);
+        } else if (callee instanceof Obj.Class) {
+            Obj.Class klass = (Obj.Class) callee;
+            stack[calleeSlot] = new Obj.Instance(klass);
+            Obj.Closure initializer = klass.methods.get("init");
+            if (initializer != null) {
+                call(initializer, argCount, line);
+            } else if (argCount != 0) {
+                throw new RuntimeError(line, "Expect0arguments but got" + argCount + ".");
+            }
+        } else if (callee instanceof Obj.Native) {
+            Obj.Native function = (Obj.Native) callee;
+            if (argCount != function.arity) {
+                throw new RuntimeError(line, "Expect" + function.arity + "arguments but got" + argCount + ".");
+            }
+            Object[] args = Arrays.copyOfRange(stack, calleeSlot + 1, sp);
+            Object result = function.body.call(args);
+            sp = calleeSlot;
+            push(result);
+        } else {
+            throw new RuntimeError(line, "Can only call functions and classes.");
+        }
+    }
+
+    private void call(Obj.Closure closure, int argCount, int line) {
+        if (argCount != closure.function.arity) {
+            throw new RuntimeError(line, "Expect" + closure.function.arity + "arguments but got" + argCount + ".");
+        }
+        if (frameCount == frames.length) {
+            if (frameCount == maxFrames) {
+                throw new RuntimeError(line, "Stack overflow.");
+            }
+            frames = Arrays.copyOf(frames, Math.min(maxFrames, frameCount * 2));
+        }
+
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - argCount - 1;
+        frameCount++;
+    }
+
+    // A method call on a property. A field holding a callable shadows the method.
+    private void invoke(String name, int argCount, int line) {
+        Object receiver = stack[sp - argCount - 1];
+        if (!(receiver instanceof Obj.Instance)) {
+            throw new RuntimeError(line, "Only instances have properties.");
+        }
+        Obj.Instance instance = (Obj.Instance) receiver;
+        int index = instance.shape.indexOf(name);
+        if (index >= 0) {
+            Object field = instance.values[index];
+            stack[sp - argCount - 1] = field;
+            callValue(field, argCount, line);
+            return;
+        }
+        invokeFromClass(instance.klass, name, argCount, line);
+    }
+
+    private void invokeFromClass(Obj.Class klass, String name, int argCount, int line) {
+        Obj.Closure method = klass.methods.get(name);
+        if (method == null) {
+            throw new RuntimeError(line, "Undefined property '" + name + "'.");
+        }
+        call(method, argCount, line);
+    }
+
+    // Upvalues.
+
+    private Obj.Upvalue captureUpvalue(int slot) {
+        Obj.Upvalue previous = null;
+        Obj.Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        Obj.Upvalue created = new Obj.Upvalue(slot);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    // Moves the values of every open upvalue at or above the slot off the stack.
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            Obj.Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.isClosed = true;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    // One active call: the closure running, where it is in its chunk, and
+    // where its slots start in the value stack.
+    private static final class CallFrame {
+        Obj.Closure closure;
+        int ip;
+        int base;
+    }
+
+    // Helpers.
+
+    private void push(Object value) {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp * 2);
+        }
+        stack[sp++] = value;
+    }
+
+    private Object pop() {
+        return stack[--sp];
+    }
+
+    private void checkNumberOperands(int line) {
+        if (stack[sp - 1] instanceof Double && stack[sp - 2] instanceof Double) return;
+        throw new RuntimeError(line, "Operands must be a number.");
+    }
+
+    private static boolean isFalsey(Object value) {
+        return value == null || (value instanceof Boolean && !(boolean) value);
+    }
+
+    private void defineNative(String name, int arity, Obj.NativeBody body) {
+        globals.define(name, new Obj.Native(arity, body));
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.usemalloc;
+
+// Reads of a variable compiled by ClosureCompiler. Locals and globals can
+// hand a number stored unboxed to a parent that asks for one with
+// executeDouble. Captured variables are always boxed, in a Cell.
+
+abstract class VariableNode implements ExprNode {
+
+    static final class Local extends VariableNode {
+        private final int slot;
+
+        Local(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            return environment.get(slot);
+        }
+
+        @Override
+        public double executeDouble(Environment environment) throws UnexpectedResultException {
+            return environment.getDouble(slot);
+        }
+    }
+
+    // A variable of the current function that a closure captured.
+    static final class Captured extends VariableNode {
+        private final int slot;
+
+        Captured(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            return environment.cell(slot).value;
+        }
+    }
+
+    // A variable of an enclosing function.
+    static final class Upvalue extends VariableNode {
+        private final int index;
+
+        Upvalue(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            return environment.upvalues[index].value;
+        }
+    }
+
+    static final class Global extends VariableNode {
+        private final Globals globals;
+        private final int slot;
+        private final Token name;
+
+        Global(Globals globals, int slot, Token name) {
+            this.globals = globals;
+            this.slot = slot;
+            this.name = name;
+        }
+
+        @Override
+        public Object execute(Environment environment) {
+            return globals.get(slot, name);
+        }
+
+        @Override
+        public double executeDouble(Environment environment) throws UnexpectedResultException {
+            return globals.getDouble(slot, name);
+        }
+    }
+
+}
@@ -21,15 +21,22 @@ public class GenerateAST {
 
         String outputDir = args[0];
 
+        // Fields after a '|' are not set by the constructor. They are mutable slots filled
+        // in later: how the Resolver found a variable is reached and its slot, the
+        // cached index of a global, or the inline cache of a property access. For
+        // statements they are what the Resolver laid out: the slot a declaration
+        // stores to and whether a closure captures it, the size of the frame a
+        // function or a top-level scope creates, -1 when it creates none, and where
+        // a function's upvalues come from.
         defineAst(outputDir, "Expr", Arrays.asList(
 //Statements and State assign
-                "Assign   : Token name, Expr value",
+                "Assign   : Token name, Expr value | Access access = Access.GLOBAL, int slot = -1, int globalSlot = -1",
 // Statements and State assign-expr
                 "Binary   : Expr left, Token operator, Expr right",
 // call-expr
                 "Call     : Expr callee, Token paren, List<Expr> arguments",
 //call-expr
-                "Get      : Expr object, Token name",
+                "Get      : Expr object, Token name | InlineCache cache = new InlineCache()",
 
                 "Grouping : Expr expression",
                 "Literal  : Object value",
@@ -37,36 +44,37 @@ public class GenerateAST {
                 "Logical  : Expr left, Token operator, Expr right",
 
 
-                "Set      : Expr object, Token name, Expr value",
+                "Set      : Expr object, Token name, Expr value | InlineCache cache = new InlineCache()",
 
 
-                "Super    : Token keyword, Token method",
+                "Super    : Token keyword, Token method | Access access = Access.GLOBAL, int slot = -1, Expr.This self = null",
 
-                "This     : Token keyword",
+                "This     : Token keyword | Access access = Access.GLOBAL, int slot = -1",
 
 /* Representing Code call-define-ast < Statements and State var-expr
       "Unary    : Token operator, Expr right"
 */
 // Statements and State var-expr
                 "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "Variable : Token name | Access access = Access.GLOBAL, int slot = -1, int globalSlot = -1"
 
         ));
 
 
         defineAst(outputDir, "Stmt", Arrays.asList(
 //> block-ast
-                "Block      : List<Stmt> statements",
+                "Block      : List<Stmt> statements | int size = -1",
 //< block-ast
 /* Classes not-yet < Inheritance not-yet
       "Class      : Token name, List<Stmt.Function> methods",
 */
 
-                "Class      : Token name, Expr superclass, List<Stmt.Function> methods",
+                "Class      : Token name, Expr superclass, List<Stmt.Function> methods | int slot = -1, boolean captured = false, int size = -1, int superSlot = -1",
 
                 "Expression : Expr expression",
+                "For        : Stmt initializer, Expr condition, Expr increment, Stmt body | int size = -1",
 //> Functions function-ast
-                "Function   : Token name, List<Token> parameters, List<Stmt> body",
+                "Function   : Token name, List<Token> parameters, List<Stmt> body | int slot = -1, boolean captured = false, int size = 0, int[] upvalues = null, int[] cellParameters = null",
 //< Functions function-ast
 //> Control Flow if-ast
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
@@ -78,13 +86,13 @@ public class GenerateAST {
                 "Print      : Expr expression",
 //< var-stmt-ast
 //> Functions return-ast
-                "Return     : Token keyword, Expr value",
+                "Return     : Token keyword, Expr value | boolean tailCall = false",
 //< Functions return-ast
 /* Statements and State var-stmt-ast < Control Flow while-ast
       "Var        : Token name, Expr initializer"
 */
 //> Control Flow while-ast
-                "Var        : Token name, Expr initializer",
+                "Var        : Token name, Expr initializer | int slot = -1, boolean captured = false",
                 "While      : Expr condition, Stmt body"
 //< Control Flow while-ast
         ));
@@ -112,8 +120,10 @@ public class GenerateAST {
         // The AST classes.
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim(); // [robust]
-            defineType(writer, baseName, className, fields);
+            String[] fieldLists = type.split(":")[1].split("\\|");
+            String fields = fieldLists[0].trim(); // [robust]
+            String mutableFields = fieldLists.length > 1 ? fieldLists[1].trim() : null;
+            defineType(writer, baseName, className, fields, mutableFields);
         }
 //< nested-classes
 //> base-accept-method
@@ -142,7 +152,7 @@ public class GenerateAST {
 
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String mutableFieldList) {
         writer.println("");
         writer.println("  static class " + className + " extends " +
                 baseName + " {");
@@ -173,6 +183,12 @@ public class GenerateAST {
         for (String field : fields) {
             writer.println("    final " + field + ";");
         }
+        if (mutableFieldList != null) {
+            writer.println();
+            for (String field : mutableFieldList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
+        }
 
         writer.println("  }");
     }
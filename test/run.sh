@@ -0,0 +1,66 @@
+#!/bin/bash
+# Runs every script under test/ on each engine and compares what it prints
+# with the expectations written in its comments:
+#
+#   // expect: <text>                 a line the script prints
+#   // expect runtime error: <text>   the run stops here with that error
+#   // error: <text>                  a line reported before the run, exit 65
+#   // flags: <jvm options>           passed to java, e.g. -Xss64m
+#   // skip: <engine>                 not run on that engine: tree, or its flag
+#
+# usage: test/run.sh [script...]
+
+cd "$(dirname "$0")/.." || exit 1
+
+# The tree-walker, and the flags that pick the other engines.
+engines=("" --vm --compile)
+
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+
+javac --release 8 -nowarn -d "$out/classes" $(find src -name '*.java') 2>&1 | grep -v '^Note:'
+if [ "${PIPESTATUS[0]}" -ne 0 ]; then
+    echo "Build failed."
+    exit 1
+fi
+
+scripts=("$@")
+if [ ${#scripts[@]} -eq 0 ]; then
+    scripts=($(find test -name '*.lox' | sort))
+fi
+
+passed=0
+failed=0
+for script in "${scripts[@]}"; do
+    grep -o '// expect: .*' "$script" | sed 's|^// expect: ||' > "$out/expected.out"
+    awk '/\/\/ expect runtime error: / { sub(/.*\/\/ expect runtime error: /, ""); print; print "[line " FNR "]" }
+         /\/\/ error: / { sub(/.*\/\/ error: /, ""); print }' "$script" > "$out/expected.err"
+    status=0
+    grep -q '// expect runtime error: ' "$script" && status=70
+    grep -q '// error: ' "$script" && status=65
+    flags=$(grep -o '// flags: .*' "$script" | sed 's|^// flags: ||')
+
+    for engine in "${engines[@]}"; do
+        name="${engine:-tree}"
+        if grep -q "// skip: $name\b" "$script"; then
+            continue
+        fi
+
+        java -Dfile.encoding=UTF-8 $flags -cp "$out/classes" com.usemalloc.Lox $engine "$script" \
+            > "$out/actual.out" 2> "$out/actual.err"
+        actual=$?
+
+        if [ $actual -eq $status ] && cmp -s "$out/expected.out" "$out/actual.out" \
+                && cmp -s "$out/expected.err" "$out/actual.err"; then
+            passed=$((passed + 1))
+        else
+            failed=$((failed + 1))
+            echo "FAIL $script ($name): exit $actual, expected $status"
+            diff "$out/expected.out" "$out/actual.out" | sed 's/^/  out /'
+            diff "$out/expected.err" "$out/actual.err" | sed 's/^/  err /'
+        fi
+    done
+done
+
+echo "$passed passed, $failed failed."
+[ $failed -eq 0 ]